@@ -176,10 +176,11 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.//TODO:这里对于后续lab可能出现问题
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f. It locks the internal
+	 * nodes along the path to the leaf node with READ_ONLY permission, each only
+	 * until its child is locked (see {@link #descend}), and locks the leaf node
+	 * with permission perm.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -188,61 +189,44 @@ public class BTreeFile implements DbFile {
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
+	 * @param coupled - the page pid was read from, locked only to read it and
+	 *        released once pid is locked, or null
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-			Field f) 
+			Field f, BTreePageId coupled) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-		if(pid.pgcateg()==BTreePageId.LEAF){
-			return (BTreeLeafPage) getPage(tid,dirtypages,pid,perm);
-		}
-		else if(pid.pgcateg()==BTreePageId.INTERNAL){
-			BTreeInternalPage now_page=(BTreeInternalPage)getPage(tid,dirtypages,pid,Permissions.READ_ONLY);
-			Iterator<BTreeEntry> it=now_page.iterator();
-			BTreeEntry entry_now=it.next();
-			if(f==null){
-				return findLeafPage(tid,dirtypages,entry_now.getLeftChild(),perm,f);
-			}
-			while(1==1){
-				if(entry_now.getKey().compare(Op.GREATER_THAN_OR_EQ,f)){
-					return findLeafPage(tid,dirtypages,entry_now.getLeftChild(),perm,f);
-				}
-				if(!it.hasNext()) break;
-				else entry_now=it.next();
-			}
-			return findLeafPage(tid,dirtypages,entry_now.getRightChild(),perm,f);
-		}
-		else throw new DbException("this page type doesn't support. in findLeafPage() func");
+		return descend(tid, dirtypages, pid, perm, f, false, coupled);
 	}
 
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
+	 * Convenience method to find a leaf page when there is no dirtypages HashMap,
+	 * starting from the root pointer page.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, BTreePageId)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafFromRoot(tid, perm, f, false);
 	}
 
 	/**
 	 * Fundamental function for class BTreeReverseSearchIterator
 	 * Added By Sakura
 	 *
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the right-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-	 * leaf node with permission perm.
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the right-most page possibly containing the key field f. It locks the internal
+	 * nodes along the path to the leaf node with READ_ONLY permission, each only
+	 * until its child is locked (see {@link #descend}), and locks the leaf node
+	 * with permission perm.
 	 *
 	 * If f is null, it finds the right-most leaf page -- used for the iterator
 	 *
@@ -251,51 +235,88 @@ public class BTreeFile implements DbFile {
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
+	 * @param coupled - the page pid was read from, locked only to read it and
+	 *        released once pid is locked, or null
 	 * @return the right-most leaf page possibly containing the key field f
 	 * */
 	private BTreeLeafPage ReversefindLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
-											  Permissions perm, Field f)
+											  Permissions perm, Field f, BTreePageId coupled)
 			throws DbException,TransactionAbortedException{
-		if(pid.pgcateg()==BTreePageId.LEAF){
-			return (BTreeLeafPage) getPage(tid,dirtypages,pid,perm);
-		}
-		else if(pid.pgcateg()==BTreePageId.INTERNAL){
-			BTreeInternalPage now_page=(BTreeInternalPage)getPage(tid,dirtypages,pid,Permissions.READ_ONLY);
-			Iterator<BTreeEntry> it=now_page.reverseIterator();
-			BTreeEntry entry_now=it.next();
-			if(f==null){
-				return findLeafPage(tid,dirtypages,entry_now.getRightChild(),perm,f);
-			}
-			while(1==1){
-				if(entry_now.getKey().compare(Op.LESS_THAN_OR_EQ,f)){
-					return findLeafPage(tid,dirtypages,entry_now.getRightChild(),perm,f);
-				}
-				if(!it.hasNext()) break;
-				else entry_now=it.next();
-			}
-			return findLeafPage(tid,dirtypages,entry_now.getLeftChild(),perm,f);
-		}
-		else throw new DbException("this page type doesn't support. in ReversefindLeafPage() func");
+		return descend(tid, dirtypages, pid, perm, f, true, coupled);
 	}
 
 	/**
-	 * Convenience method to Reverse_find a leaf page when there is no dirtypages HashMap.
+	 * Convenience method to Reverse_find a leaf page when there is no dirtypages HashMap,
+	 * starting from the root pointer page.
 	 * Add by Sakura
 	 *
 	 * Used by the BTreeFile iterator.
-	 * @see #ReversefindLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @see #ReversefindLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, BTreePageId)
 	 *
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the right-most leaf page possibly containing the key field f
 	 *
 	 */
-	BTreeLeafPage ReversefindLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-							   Field f)
+	BTreeLeafPage ReversefindLeafPage(TransactionId tid, Permissions perm, Field f)
 			throws DbException, TransactionAbortedException {
-		return ReversefindLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafFromRoot(tid, perm, f, true);
+	}
+
+	/**
+	 * Helper function of the convenience findLeafPage and ReversefindLeafPage
+	 * Read the root id from the root pointer page, which is only locked until
+	 * the root page is, and walk down from the root.
+	 */
+	private BTreeLeafPage findLeafFromRoot(TransactionId tid, Permissions perm, Field f, boolean last)
+			throws DbException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = Database.getBufferPool().holdsLock(tid, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		return descend(tid, dirtypages, rootPtr.getRootId(), perm, f, last, held ? null : rootPtrId);
+	}
+
+	/**
+	 * Helper function of findLeafPage and ReversefindLeafPage
+	 * Walk down from pid to the left-most (or right-most) leaf page possibly
+	 * containing f, with lock coupling: an internal page is locked READ_ONLY
+	 * only until its child is locked, instead of until the transaction
+	 * completes, so that readers and inserters do not block splits and merges
+	 * in other parts of the tree.  This is safe because the child pointer read
+	 * from a page stays valid while the page is locked, and the child does not
+	 * change once it is locked in turn.  Splits and merges go up the tree
+	 * through the parent pointers of the pages they lock, not through the path
+	 * taken here, and keep their locks until the transaction completes.
+	 * <p>
+	 * The leaf page keeps its lock, and so do the pages the transaction had
+	 * locked or dirtied before.
+	 *
+	 * @param last - whether to find the right-most leaf page instead of the left-most
+	 * @param coupled - the page pid was read from, released once pid is locked, or null
+	 */
+	private BTreeLeafPage descend(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			Permissions perm, Field f, boolean last, BTreePageId coupled)
+					throws DbException, TransactionAbortedException {
+		BufferPool bufferpool = Database.getBufferPool();
+		while(true){
+			boolean held=dirtypages.containsKey(pid)||bufferpool.holdsLock(tid,pid);
+			if(pid.pgcateg()==BTreePageId.LEAF){
+				BTreeLeafPage leaf=(BTreeLeafPage) getPage(tid,dirtypages,pid,perm);
+				if(coupled!=null) bufferpool.releasePage(tid,coupled);
+				return leaf;
+			}
+			if(pid.pgcateg()!=BTreePageId.INTERNAL){
+				throw new DbException("this page type doesn't support. in findLeafPage() func");
+			}
+			BTreeInternalPage now_page=(BTreeInternalPage)getPage(tid,dirtypages,pid,Permissions.READ_ONLY);
+			if(coupled!=null) bufferpool.releasePage(tid,coupled);
+			BTreePageId child=last ? now_page.findLastChildId(f) : now_page.findChildId(f);
+			if(child==null) throw new DbException("internal page has no entries. in findLeafPage() func");
+			coupled=held ? null : pid;
+			pid=child;
+		}
 	}
 
 	/**
@@ -576,7 +597,10 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
+		// get a read lock on the root pointer page and use it to locate the root page;
+		// the lock is released once the root page is locked, unless it was held before
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = Database.getBufferPool().holdsLock(tid, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
@@ -588,7 +612,8 @@ public class BTreeFile implements DbFile {
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField),
+				held || dirtypages.containsKey(rootPtrId) ? null : rootPtrId);
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -1346,10 +1371,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
 
@@ -1427,10 +1449,7 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.ReversefindLeafPage(tid, root, Permissions.READ_ONLY, null);//可能出现问题
+		curp = f.ReversefindLeafPage(tid, Permissions.READ_ONLY, null);//可能出现问题
 		it = curp.reverseIterator();
 	}
 
@@ -1513,17 +1532,19 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+			// start from the first tuple that may match
+			if(ipred.getOp() == Op.GREATER_THAN)
+				it = curp.iterator(curp.upperBound(ipred.getField()));
+			else
+				it = curp.iterator(curp.lowerBound(ipred.getField()));
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1616,18 +1637,19 @@ class BTreeReverseSearchIterator extends AbstractDbFileIterator{
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
 				|| ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-			curp = f.ReversefindLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.ReversefindLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+			// start from the last tuple that may match
+			if(ipred.getOp() == Op.LESS_THAN)
+				it = curp.reverseIterator(curp.lowerBound(ipred.getField()));
+			else
+				it = curp.reverseIterator(curp.upperBound(ipred.getField()));
 		}
 		else {
-			curp = f.ReversefindLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.ReversefindLeafPage(tid, Permissions.READ_ONLY, null);
+			it = curp.reverseIterator();
 		}
-		it = curp.reverseIterator();
 	}
 
 
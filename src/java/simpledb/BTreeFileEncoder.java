@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -335,6 +337,229 @@ public class BTreeFileEncoder {
 		return bf;
 	}
 
+	/**
+	 * Build a B+ tree file from the tuples of an iterator, bottom up.
+	 * <p>
+	 * The tuples are sorted on the key field with an {@link ExternalSort}, so
+	 * they need not fit in memory: runs of about
+	 * {@link ExternalSort#DEFAULT_RUN_BYTES} of tuples on the heap are sorted
+	 * at a time and spilled to temporary files.  The sorted tuples are packed into leaf
+	 * pages filled to the fill factor, which are written as they fill, in
+	 * page order, with their sibling pointers.  Each level of internal pages
+	 * is then built from the first key and page number of every page of the
+	 * level below (only these are kept in memory), and the parent pointers of
+	 * its children are patched in place.  The last two pages of a level are
+	 * balanced, so that every page but the root is at least half as full as
+	 * the fill factor asks for.  The root pointer page is written last.  An
+	 * empty input gives a tree with a single empty leaf.
+	 * <p>
+	 * bFile is overwritten and must not be in use by another table.  The new
+	 * BTreeFile is added to the catalog under a random name.
+	 * 
+	 * @param child - the tuples to load, of any types
+	 * @param bFile - the data file for the BTreeFile
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]
+	 * @return the B+ tree file
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static BTreeFile bulkLoad(OpIterator child, File bFile, int keyField, double fillFactor)
+			throws IOException, DbException, TransactionAbortedException {
+		bulkLoadFile(child, bFile, keyField, fillFactor);
+		return addToCatalog(bFile, keyField, child.getTupleDesc());
+	}
+
+	/**
+	 * Write a B+ tree file from the tuples of an iterator, like bulkLoad,
+	 * without adding it to the catalog.
+	 * 
+	 * @see #bulkLoad(OpIterator, File, int, double)
+	 */
+	public static void bulkLoadFile(OpIterator child, File bFile, int keyField, double fillFactor)
+			throws IOException, DbException, TransactionAbortedException {
+		if(fillFactor <= 0 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]");
+		}
+		TupleDesc td = child.getTupleDesc();
+		Type keyType = td.getFieldType(keyField);
+		int npagebytes = BufferPool.getPageSize();
+		int tableid = bFile.getAbsoluteFile().hashCode();
+
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE;
+		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) / (td.getSize() * 8 + 1);
+		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		// pointerbytes: one extra child pointer, parent pointer, child page category
+		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1;
+		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) / (nentrybytes * 8 + 1);
+		if(nrecords < 1 || nentries < 2) {
+			throw new DbException("pages of " + npagebytes + " bytes are too small for this table");
+		}
+		// with three or more children per page, the balanced pages of a level
+		// never end up with a single child
+		int perLeaf = Math.max(1, (int) (fillFactor * nrecords));
+		int perInternal = Math.min(nentries + 1, Math.max(3, (int) (fillFactor * (nentries + 1))));
+
+		RandomAccessFile raf = new RandomAccessFile(bFile, "rw");
+		ExternalSort sorted = new ExternalSort(keyField, true, child);
+		try {
+			raf.setLength(0);
+			BulkWriter out = new BulkWriter(raf, npagebytes);
+
+			// the leaves are numbered from 1 in key order.  One full leaf is
+			// held back until the next one fills, so that the last two can be
+			// balanced.
+			ArrayList<Field> firstKeys = new ArrayList<Field>();
+			ArrayList<Tuple> prev = null;
+			ArrayList<Tuple> cur = new ArrayList<Tuple>();
+			sorted.open();
+			while(sorted.hasNext()) {
+				if(cur.size() == perLeaf) {
+					if(prev != null) {
+						writeLeaf(out, prev, firstKeys, td, keyField, false);
+					}
+					prev = cur;
+					cur = new ArrayList<Tuple>();
+				}
+				cur.add(sorted.next());
+			}
+			if(cur.isEmpty()) {
+				// no tuples: the root is an empty leaf
+				out.append(convertToLeafPage(cur, npagebytes, td.numFields(), typeArray(td), keyField));
+			}
+			else if(prev != null) {
+				if(cur.size() < perLeaf / 2) {
+					ArrayList<Tuple> both = new ArrayList<Tuple>(prev);
+					both.addAll(cur);
+					int half = (both.size() + 1) / 2;
+					prev = new ArrayList<Tuple>(both.subList(0, half));
+					cur = new ArrayList<Tuple>(both.subList(half, both.size()));
+				}
+				writeLeaf(out, prev, firstKeys, td, keyField, false);
+				writeLeaf(out, cur, firstKeys, td, keyField, true);
+			}
+			else {
+				writeLeaf(out, cur, firstKeys, td, keyField, true);
+			}
+
+			// build the internal levels until a single page is left
+			int firstChild = 1;
+			int childCategory = BTreePageId.LEAF;
+			while(firstKeys.size() > 1) {
+				int n = firstKeys.size();
+				int npages = (n + perInternal - 1) / perInternal;
+				ArrayList<Field> upperKeys = new ArrayList<Field>(npages);
+				int firstPage = out.nextPage();
+				int c = 0;
+				for(int p = 0; p < npages; p++) {
+					int count = n / npages + (p < n % npages ? 1 : 0);
+					ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>(count - 1);
+					for(int j = c + 1; j < c + count; j++) {
+						entries.add(new BTreeEntry(firstKeys.get(j),
+								new BTreePageId(tableid, firstChild + j - 1, childCategory),
+								new BTreePageId(tableid, firstChild + j, childCategory)));
+					}
+					upperKeys.add(firstKeys.get(c));
+					int pageNo = out.append(convertToInternalPage(entries, npagebytes, keyType, childCategory));
+					for(int j = c; j < c + count; j++) {
+						out.setParent(firstChild + j, pageNo);
+					}
+					c += count;
+				}
+				firstKeys = upperKeys;
+				firstChild = firstPage;
+				childCategory = BTreePageId.INTERNAL;
+			}
+
+			out.writeRootPtr(convertToRootPtrPage(firstChild, childCategory, 0));
+			raf.getChannel().force(true);
+		} finally {
+			sorted.close();
+			raf.close();
+		}
+	}
+
+	/**
+	 * Helper function of bulkLoad: write the next leaf page, pointing at the
+	 * leaves before and after it, and record its first key.
+	 */
+	private static void writeLeaf(BulkWriter out, ArrayList<Tuple> tuples, ArrayList<Field> firstKeys,
+			TupleDesc td, int keyField, boolean last) throws IOException {
+		Type[] typeAr = typeArray(td);
+		byte[] data = convertToLeafPage(tuples, BufferPool.getPageSize(), typeAr.length, typeAr, keyField);
+		int pageNo = out.nextPage();
+		// parent pointer, left sibling pointer, right sibling pointer
+		ByteBuffer pointers = ByteBuffer.wrap(data);
+		pointers.putInt(4, pageNo - 1);
+		pointers.putInt(8, last ? 0 : pageNo + 1);
+		out.append(data);
+		firstKeys.add(tuples.get(0).getField(keyField));
+	}
+
+	private static Type[] typeArray(TupleDesc td) {
+		Type[] typeAr = new Type[td.numFields()];
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		return typeAr;
+	}
+
+	private static BTreeFile addToCatalog(File bFile, int keyField, TupleDesc td) {
+		BTreeFile bf = new BTreeFile(bFile, keyField, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	/**
+	 * Writes the pages of a bulk loaded B+ tree file in page order, after
+	 * room for the root pointer page.
+	 */
+	private static class BulkWriter {
+		private final FileChannel channel;
+		private final int npagebytes;
+		private int pages = 0;
+
+		BulkWriter(RandomAccessFile raf, int npagebytes) {
+			this.channel = raf.getChannel();
+			this.npagebytes = npagebytes;
+		}
+
+		private long offset(int pageNo) {
+			return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * npagebytes;
+		}
+
+		/** @return the number of the next page appended */
+		int nextPage() {
+			return pages + 1;
+		}
+
+		/** Append a page to the file, returning its number */
+		int append(byte[] data) throws IOException {
+			pages++;
+			write(ByteBuffer.wrap(data), offset(pages));
+			return pages;
+		}
+
+		/** Set the parent pointer of a page already written */
+		void setParent(int pageNo, int parent) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(BTreePage.INDEX_SIZE);
+			buf.putInt(parent).flip();
+			write(buf, offset(pageNo));
+		}
+
+		void writeRootPtr(byte[] data) throws IOException {
+			write(ByteBuffer.wrap(data), 0);
+		}
+
+		private void write(ByteBuffer buf, long pos) throws IOException {
+			while(buf.hasRemaining()) {
+				pos += channel.write(buf, pos);
+			}
+		}
+	}
+
 	/**
 	 * Set all the right sibling pointers by following the left sibling pointers
 	 * 
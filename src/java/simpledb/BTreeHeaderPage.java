@@ -23,8 +23,8 @@ public class BTreeHeaderPage implements Page {
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
 
-	byte[] oldData;
-	private final Byte oldDataLock=new Byte((byte)0);
+	byte[] oldData; // null if the page was not changed since the before image
+	private final Object oldDataLock=new Object();
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -60,14 +60,13 @@ public class BTreeHeaderPage implements Page {
 			header[i] = dis.readByte();
 
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/**
 	 * Initially mark all slots in the header used.
 	 */
 	public void init() {
+		beforeWrite();
 		for (int i=0; i<header.length; i++)
 			header[i] = (byte) 0xFF;
 	}
@@ -95,7 +94,8 @@ public class BTreeHeaderPage implements Page {
 			byte[] oldDataRef = null;
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				// no before image: the page was not changed since
+				oldDataRef = oldData != null ? oldData : getPageData();
 			}
 			return new BTreeHeaderPage(pid,oldDataRef);
 		} catch (IOException e) {
@@ -107,9 +107,23 @@ public class BTreeHeaderPage implements Page {
 	}
 
 	public void setBeforeImage() {
+		// the current content is the before image until the page is changed
+		synchronized(oldDataLock)
+		{
+			oldData = null;
+		}
+	}
+
+	/**
+	 * Copy the current content of this page to the before image, unless the
+	 * page was already changed since the before image was last set.  Called
+	 * before the page is changed.
+	 */
+	private void beforeWrite() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			if(oldData == null)
+				oldData = getPageData();
 		}
 	}
 
@@ -211,6 +225,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setPrevPageId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			prevPage = 0;
 		}
@@ -231,6 +246,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setNextPageId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			nextPage = 0;
 		}
@@ -281,6 +297,7 @@ public class BTreeHeaderPage implements Page {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
+		beforeWrite();
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
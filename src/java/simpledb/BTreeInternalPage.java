@@ -21,6 +21,10 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	// the used slots in order, null if not computed since a slot was last
+	// filled or cleared
+	private volatile int[] usedSlots;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -107,8 +111,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/** 
@@ -143,7 +145,8 @@ public class BTreeInternalPage extends BTreePage {
 			byte[] oldDataRef = null;
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				// no before image: the page was not changed since
+				oldDataRef = oldData != null ? oldData : getPageData();
 			}
 			return new BTreeInternalPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
@@ -155,9 +158,10 @@ public class BTreeInternalPage extends BTreePage {
 	}
 
 	public void setBeforeImage() {
+		// the current content is the before image until the page is changed
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = null;
 		}
 	}
 
@@ -352,6 +356,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null entry.");
+		beforeWrite();
 		if(deleteRightChild) {
 			markSlotUsed(rid.getTupleNumber(), false);
 		}
@@ -409,6 +414,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		beforeWrite();
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -447,6 +453,8 @@ public class BTreeInternalPage extends BTreePage {
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
 			throw new DbException("table id mismatch in insertEntry");
 
+		beforeWrite();
+
 		if(childCategory == 0) {
 			if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
 				throw new DbException("child page category mismatch in insertEntry");
@@ -599,6 +607,78 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		usedSlots = null;
+	}
+
+	/**
+	 * The used slots of this page in order: slot 0, which holds the left-most
+	 * child pointer, then the slots of the entries in key order.
+	 */
+	private int[] usedSlots() {
+		int[] slots = usedSlots;
+		if(slots == null) {
+			int n = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					n++;
+			slots = new int[n];
+			n = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					slots[n++] = i;
+			usedSlots = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Binary search for the first entry whose key satisfies op against f,
+	 * where op is GREATER_THAN_OR_EQ or GREATER_THAN.
+	 * @param slots - the used slots of this page
+	 * @return the index in slots of that entry, or slots.length if none
+	 */
+	private int search(int[] slots, Field f, Op op) {
+		int lo = 1, hi = slots.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[slots[mid]].compare(op, f))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Find the left-most child of this page whose subtree may contain the key
+	 * f: the left child of the first entry with a key greater than or equal
+	 * to f, or the right child of the last entry if there is none.  Uses a
+	 * binary search over the keys.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child, or null if the page has no child pointers
+	 */
+	public BTreePageId findChildId(Field f) {
+		int[] slots = usedSlots();
+		if(slots.length == 0)
+			return null;
+		int i = f == null ? 1 : search(slots, f, Op.GREATER_THAN_OR_EQ);
+		return new BTreePageId(pid.getTableId(), children[slots[i - 1]], childCategory);
+	}
+
+	/**
+	 * Find the right-most child of this page whose subtree may contain the
+	 * key f: the right child of the last entry with a key less than or equal
+	 * to f, or the left child of the first entry if there is none.  Uses a
+	 * binary search over the keys.
+	 * @param f - the key to search for, or null for the right-most child
+	 * @return the id of the child, or null if the page has no child pointers
+	 */
+	public BTreePageId findLastChildId(Field f) {
+		int[] slots = usedSlots();
+		if(slots.length == 0)
+			return null;
+		int i = f == null ? slots.length : search(slots, f, Op.GREATER_THAN);
+		return new BTreePageId(pid.getTableId(), children[slots[i - 1]], childCategory);
 	}
 
 	/**
@@ -19,6 +19,10 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// the used slots in order, null if not computed since a slot was last
+	// filled or cleared
+	private volatile int[] usedSlots;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -102,8 +106,6 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/** 
@@ -135,7 +137,8 @@ public class BTreeLeafPage extends BTreePage {
 			byte[] oldDataRef = null;
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				// no before image: the page was not changed since
+				oldDataRef = oldData != null ? oldData : getPageData();
 			}
 			return new BTreeLeafPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
@@ -147,9 +150,10 @@ public class BTreeLeafPage extends BTreePage {
 	}
 
 	public void setBeforeImage() {
+		// the current content is the before image until the page is changed
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = null;
 		}
 	}
 
@@ -294,6 +298,7 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
+		beforeWrite();
 		markSlotUsed(rid.getTupleNumber(), false);
 		t.setRecordId(null);
 	}
@@ -334,6 +339,8 @@ public class BTreeLeafPage extends BTreePage {
 			}
 		}
 
+		beforeWrite();
+
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
 		int goodSlot = -1;
@@ -400,6 +407,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			leftSibling = 0;
 		}
@@ -420,6 +428,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			rightSibling = 0;
 		}
@@ -473,6 +482,68 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		usedSlots = null;
+	}
+
+	/**
+	 * The used slots of this page in order, which is the order of the keys
+	 * of their tuples.
+	 */
+	private int[] usedSlots() {
+		int[] slots = usedSlots;
+		if(slots == null) {
+			int n = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					n++;
+			slots = new int[n];
+			n = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					slots[n++] = i;
+			usedSlots = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Binary search for the first tuple whose key satisfies op against f,
+	 * where op is GREATER_THAN_OR_EQ or GREATER_THAN.
+	 * @return the slot of that tuple, or the number of slots if none
+	 */
+	private int search(Field f, Predicate.Op op) {
+		int[] slots = usedSlots();
+		int lo = 0, hi = slots.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(tuples[slots[mid]].getField(keyField).compare(op, f))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo < slots.length ? slots[lo] : numSlots;
+	}
+
+	/**
+	 * Find the first tuple on this page whose key is greater than or equal to
+	 * f, by binary search over the keys.
+	 * @param f - the key to search for
+	 * @return the slot of that tuple, or the number of slots if there is none
+	 * @see #iterator(int)
+	 */
+	public int lowerBound(Field f) {
+		return search(f, Predicate.Op.GREATER_THAN_OR_EQ);
+	}
+
+	/**
+	 * Find the first tuple on this page whose key is greater than f, by
+	 * binary search over the keys.
+	 * @param f - the key to search for
+	 * @return the slot of that tuple, or the number of slots if there is none
+	 * @see #reverseIterator(int)
+	 */
+	public int upperBound(Field f) {
+		return search(f, Predicate.Op.GREATER_THAN);
 	}
 
 	/**
@@ -483,6 +554,14 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param from - the first slot to return a tuple from, e.g. a lowerBound
+	 * @return an iterator over the tuples on this page from the specified slot on
+	 */
+	public Iterator<Tuple> iterator(int from) {
+		return new BTreeLeafPageIterator(this, from);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -491,6 +570,16 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @param before - the slot after the last one to return a tuple from, e.g.
+	 *        an upperBound
+	 * @return a reverse iterator over the tuples on this page before the
+	 *         specified slot
+	 */
+	public Iterator<Tuple> reverseIterator(int before) {
+		return new BTreeLeafPageReverseIterator(this, before);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -529,6 +618,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int from) {
+		this.p = p;
+		this.curTuple = from;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -578,6 +672,11 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		this.curTuple = p.getMaxTuples() - 1;
 	}
 
+	public BTreeLeafPageReverseIterator(BTreeLeafPage p, int before) {
+		this.p = p;
+		this.curTuple = before - 1;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
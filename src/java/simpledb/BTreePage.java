@@ -21,8 +21,8 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
-	protected byte[] oldData;
-	protected final Byte oldDataLock=new Byte((byte)0);
+	protected byte[] oldData; // null if the page was not changed since the before image
+	protected final Object oldDataLock=new Object();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -101,6 +101,7 @@ public abstract class BTreePage implements Page {
 		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
 			throw new DbException("parent must be an internal node or root pointer");
 		}
+		beforeWrite();
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = 0;
 		}
@@ -109,6 +110,20 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * Copy the current content of this page to the before image, unless the
+	 * page was already changed since the before image was last set.  Called
+	 * by the methods that change the page, before they change it, so that
+	 * pages that are only read never copy their content.
+	 */
+	protected void beforeWrite() {
+		synchronized(oldDataLock)
+		{
+			if(oldData == null)
+				oldData = getPageData();
+		}
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
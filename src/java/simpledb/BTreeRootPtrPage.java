@@ -22,7 +22,7 @@ public class BTreeRootPtrPage implements Page {
 	private int rootCategory;
 	private int header;
 
-	private byte[] oldData;
+	private byte[] oldData; // null if the page was not changed since the before image
 
 	/**
 	 * Constructor.
@@ -43,12 +43,21 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the header pointer
 		header = dis.readInt();
-		
-		setBeforeImage();
 	}
 
-	public void setBeforeImage() {
-		oldData = getPageData().clone();
+	public synchronized void setBeforeImage() {
+		// the current content is the before image until the page is changed
+		oldData = null;
+	}
+
+	/**
+	 * Copy the current content of this page to the before image, unless the
+	 * page was already changed since the before image was last set.  Called
+	 * before the page is changed.
+	 */
+	private synchronized void beforeWrite() {
+		if(oldData == null)
+			oldData = getPageData();
 	}
 
 	/**
@@ -140,9 +149,9 @@ public class BTreeRootPtrPage implements Page {
 
 	/** Return a view of this page before it was modified
         -- used by recovery */
-	public BTreeRootPtrPage getBeforeImage(){
+	public synchronized BTreeRootPtrPage getBeforeImage(){
 		try {
-			return new BTreeRootPtrPage(pid,oldData);
+			return new BTreeRootPtrPage(pid,oldData != null ? oldData : getPageData());
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -168,6 +177,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setRootId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			root = 0;
 		}
@@ -200,6 +210,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setHeaderId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			header = 0;
 		}
@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * BackgroundWriter is a background thread that trickles the pages of the
+ * dirty page table of a {@link BufferPool} to disk, oldest recLSN first, and
+ * optionally takes a fuzzy checkpoint of the {@link LogFile} at a fixed
+ * interval.
+ * <p>
+ * Under NO-FORCE, committed changes stay in the buffer pool until their
+ * pages are evicted, so without the writer the recLSNs recorded by a
+ * checkpoint can stay old for a long time, and with them the point from which
+ * recovery has to redo and up to which the log can be truncated.  Writing a
+ * few pages per round keeps both recent, so that checkpoints can be taken
+ * every few seconds without stalling transactions.
+ */
+public class BackgroundWriter extends Thread {
+
+    /** Default number of pages written per round. */
+    public static final int DEFAULT_PAGES_PER_ROUND = 8;
+
+    private final BufferPool bufferpool;
+    private final long interval;
+    private final int pagesPerRound;
+    private final long checkpointInterval;
+    private volatile boolean running;
+
+    /**
+     * @param bufferpool the buffer pool whose pages to write
+     * @param interval time between two rounds, in milliseconds
+     * @param pagesPerRound maximum number of pages written per round
+     * @param checkpointInterval time between two checkpoints, in
+     *   milliseconds; 0 to leave checkpoints to the caller
+     */
+    public BackgroundWriter(BufferPool bufferpool, long interval, int pagesPerRound,
+            long checkpointInterval) {
+        super("BackgroundWriter");
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval must be positive");
+        if (pagesPerRound <= 0)
+            throw new IllegalArgumentException("pages per round must be positive");
+        if (checkpointInterval < 0)
+            throw new IllegalArgumentException("checkpoint interval must not be negative");
+        this.bufferpool = bufferpool;
+        this.interval = interval;
+        this.pagesPerRound = pagesPerRound;
+        this.checkpointInterval = checkpointInterval;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    public void run() {
+        long lastCheckpoint = System.currentTimeMillis();
+        while (running) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (!running)
+                return;
+            try {
+                bufferpool.writeBackPages(pagesPerRound);
+                long now = System.currentTimeMillis();
+                if (checkpointInterval > 0 && now - lastCheckpoint >= checkpointInterval) {
+                    Database.getLogFile().logCheckpoint();
+                    lastCheckpoint = now;
+                }
+            } catch (IOException e) {
+                // the pages stay in the dirty page table, try again next round
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stop the writer and wait for it to finish its current round, so that
+     * it does not write pages or checkpoints after the caller went on.  The
+     * thread is not interrupted, since interrupting a force of the log would
+     * close the log file's channel.
+     */
+    public void shutdown() {
+        running = false;
+        if (Thread.currentThread() == this)
+            return;
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
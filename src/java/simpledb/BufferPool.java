@@ -6,9 +6,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.lang.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
-
-import static java.lang.Thread.currentThread;
-import static java.lang.Thread.sleep;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -33,256 +31,48 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
 
     private final int num_Pages;
-    private final ConcurrentHashMap<Integer,Page> page_hashmap;
+    private final PageTable page_table;
     private final ConcurrentHashMap<String,Integer> r_hashmap;
     private int test_num;
-    private LockProcess lockprocess;
-
-    /*
-     * Added by Sakura
-     * Helper class of describe the type of lock and the lock's tid.
-     * when lockType == READ_WRITE means the lock is a exclusive lock
-     * when lockType == READ_ONLY means the lock is a shared lock
-     * */
-    public class Lock{
-        private Permissions lockType;
-        private TransactionId tid;
-
-        public Lock(Permissions lockType,TransactionId tid){
-            this.lockType=lockType;
-            this.tid=tid;
-        }
-        public Lock(Permissions lockType){
-            this.lockType=lockType;
-            this.tid=null;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if(this==obj) return true;
-            if(obj==null||getClass()!=obj.getClass()) return false;
-            Lock obj_lock=(Lock) obj;
-            return tid.equals(obj_lock.tid)&&lockType.equals(obj_lock.lockType);
-        }
-    }
-
-    /*
-     * Added by Sakura
-     * Helper class to maintain and process series of locks on specific transaction
-     * */
-    public class LockProcess{
-        private ConcurrentHashMap<PageId,List<Lock>> pageid2locklist;
-        private ConcurrentHashMap<TransactionId, Set<TransactionId>> dependencylist;
-        public LockProcess(){
-            pageid2locklist=new ConcurrentHashMap<>();
-            dependencylist=new ConcurrentHashMap<>();
-        }
-        public synchronized void addLock(TransactionId tid,PageId pid,Permissions perm){
-            Lock lock_to_add=new Lock(perm,tid);
-            List<Lock> locklist=pageid2locklist.get(pid);
-            if(locklist==null){//如果这个页面上还没有Lock
-                locklist=new ArrayList<>();
-            }
-            locklist.add(lock_to_add);
-            pageid2locklist.put(pid,locklist);
-            removeDependency(tid);
-        }
-        private synchronized void addDependency(TransactionId from_tid,TransactionId to_tid){
-            if(from_tid==to_tid) return;
-            Set<TransactionId> lis=dependencylist.get(from_tid);
-            if(lis==null||lis.size()==0){
-                lis=new HashSet<>();
-            }
-            lis.add(to_tid);
-            dependencylist.put(from_tid,lis);
-        }
-        private synchronized void removeDependency(TransactionId tid){
-            dependencylist.remove(tid);
-        }
-        public synchronized boolean isexistCycle(TransactionId tid){
-            // using the logic of topologysort
-            Set<TransactionId> diverseid=new HashSet<>();
-            Queue<TransactionId> que=new ConcurrentLinkedQueue<>();
-            que.add(tid);
-
-            while(que.size()>0){
-                TransactionId remove_tid=que.remove();
-                if(diverseid.contains(remove_tid)) continue;
-                diverseid.add(remove_tid);
-                Set<TransactionId> now_set=dependencylist.get(remove_tid);
-                if(now_set==null) continue;
-                for(TransactionId now_tid:now_set){
-                    que.add(now_tid);
-                }
-            }
-
-            ConcurrentHashMap<TransactionId,Integer> now_rudu=new ConcurrentHashMap<>();
-            for(TransactionId now_tid:diverseid){
-                now_rudu.put(now_tid,0);
-            }
-            for(TransactionId now_tid:diverseid){
-                Set<TransactionId> now_set=dependencylist.get(now_tid);
-                if(now_set==null) continue;
-                for(TransactionId now2_tid:now_set){
-                    Integer temp = now_rudu.get(now2_tid);
-                    temp++;
-                    now_rudu.put(now2_tid,temp);
-                }
-            }
-
-            while(true){
-                int cnt=0;
-                for(TransactionId now_tid:diverseid){
-                    if(now_rudu.get(now_tid)==null) continue;
-                    if(now_rudu.get(now_tid)==0){
-                        Set<TransactionId> now_set=dependencylist.get(now_tid);
-                        if(now_set==null) continue;
-                        for(TransactionId now2_tid:now_set){
-                            Integer temp = now_rudu.get(now2_tid);
-                            if(temp==null) continue;
-                            temp--;
-                            now_rudu.put(now2_tid,temp);
-                        }
-                        now_rudu.remove(now_tid);
-                        cnt++;
-                    }
-                }
-                if(cnt==0) break;
-            }
-
-            if(now_rudu.size()==0) return false;
-            return true;
-        }
-        public synchronized boolean acquiresharelock(TransactionId tid,PageId pid)
-                throws DbException{
-            List<Lock> locklist=pageid2locklist.get(pid);
-            if(locklist!=null&&locklist.size()!=0){
-                if(locklist.size()==1){
-                    Lock only_lock=locklist.iterator().next();
-                    if(only_lock.tid.equals(tid)){
-                        if(only_lock.lockType==Permissions.READ_ONLY) return true;
-                        else {addLock(tid,pid,Permissions.READ_ONLY);return true;}
-                    }
-                    else{
-                        if(only_lock.lockType==Permissions.READ_ONLY) {addLock(tid,pid,Permissions.READ_ONLY); return true;}
-                        else {
-                            addDependency(tid,only_lock.tid);
-                            return false;
-                        }
-                    }
-                }
-                else{
-                    // Opt1.两个锁，都属于tid（一读一写）
-                    // Opt2.两个锁，都属于非tid（一读一写）
-                    // Opt3.多个读锁，有一个读锁为tid的
-                    // Opt4.多个读锁，但没有读锁为tid的
-                    for (Lock it:locklist) {
-                        if (it.lockType == Permissions.READ_WRITE) {
-                            //如果其中有一个写锁，根据是否为自己的来判断属于情况1还是2
-                            if(it.tid.equals(tid)) return true;
-                            else {
-                                addDependency(tid,it.tid);
-                                return false;
-                            }
-                        }
-                        else if (it.tid.equals(tid)) return true;
-                    }
-                    addLock(tid,pid,Permissions.READ_ONLY);
-                    return true;
-                }
-            }
-            addLock(tid,pid,Permissions.READ_ONLY);
-            return true;
-        }
-        public synchronized boolean acquireexclusivelock(TransactionId tid,PageId pid)
-                throws DbException{
-            List<Lock> locklist=pageid2locklist.get(pid);
-            if(locklist!=null&&locklist.size()!=0) {
-                if (locklist.size() == 1) {
-                    Lock only_lock = locklist.iterator().next();
-                    if (only_lock.tid.equals(tid)){
-                        if(only_lock.lockType==Permissions.READ_WRITE) return true;
-                        else {
-                            addLock(tid,pid, Permissions.READ_WRITE);
-                            return true;
-                        }
-                    }
-                    else {
-                        addDependency(tid,only_lock.tid);
-                        return false;
-                    }
-                }
-                else {
-                    if (locklist.size() == 2) {
-                        for (Lock it:locklist) {
-                            if (it.tid.equals(tid)&&it.lockType==Permissions.READ_WRITE) {
-                                return true;
-                            }
-                        }
-                        addDependency(tid,locklist.iterator().next().tid);
-                        return false;
-                    }
-                    for(Lock it:locklist){
-                        addDependency(tid,it.tid);
-                    }
-                    return false;
-                }
-            }
-            else{
-                addLock(tid,pid, Permissions.READ_WRITE);
-                return true;
-            }
-        }
-        public synchronized boolean acquirelock(TransactionId tid,PageId pid,Permissions perm)
-                throws DbException{
-            if(perm==Permissions.READ_ONLY) return acquiresharelock(tid,pid);
-            return acquireexclusivelock(tid,pid);
-        }
-        public synchronized boolean releasePage(TransactionId tid, PageId pid)
-        {
-            List<Lock> locks=pageid2locklist.get(pid);
-            if(locks==null||locks.size()==0) {
-                System.out.println("there are no locks");
-                return false;
-            }
-            Lock temp_lock=getLock(tid,pid);
-            if(temp_lock==null) return false;
-            locks.remove(temp_lock);
-
-            while(true){
-                temp_lock=getLock(tid,pid);
-                if(temp_lock==null) break;
-                locks.remove(temp_lock);
-            }
-
-            pageid2locklist.put(pid,locks);
-            return true;
-        }
-        public synchronized Lock getLock(TransactionId tid, PageId pid) {
-            List<Lock> list = pageid2locklist.get(pid);
-            if (list==null||list.size()==0) {
-                return null;
-            }
-            for (Lock lk:list) {
-                if (lk.tid.equals(tid)) return lk;
-            }
-            return null;
-        }
+    private final LockManager lockmanager;
+    private final EvictionPolicy evictionpolicy;
+    private final AtomicLong hit_count;
+    private final AtomicLong miss_count;
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> dirty_pages;
+    private final Set<TransactionId> stolen_tids;
+    private volatile boolean stealing;
+    private BackgroundWriter writer;
 
+    /**
+     * Creates a BufferPool that caches up to numPages pages, replacing pages
+     * with the CLOCK policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
+    public BufferPool(int numPages) {
+        this(numPages,new ClockEvictionPolicy());
     }
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the policy used to choose which page to evict when the
+     *     pool is full.
      */
-    public BufferPool(int numPages) {
+    public BufferPool(int numPages,EvictionPolicy policy) {
         // some code goes here
         num_Pages=numPages;
-        page_hashmap=new ConcurrentHashMap<>();
+        page_table=new PageTable();
         test_num=0;
-        lockprocess=new LockProcess();
+        lockmanager=new LockManager();
         r_hashmap=new ConcurrentHashMap<>();
+        evictionpolicy=policy;
+        hit_count=new AtomicLong(0);
+        miss_count=new AtomicLong(0);
+        dirty_pages=new ConcurrentHashMap<>();
+        stolen_tids=ConcurrentHashMap.newKeySet();
+        stealing=false;
     }
 
     public static int getPageSize() {
@@ -299,6 +89,60 @@ public class BufferPool {
         BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /** Return the eviction policy used by this buffer pool */
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionpolicy;
+    }
+
+    /**
+     * Allow or forbid evicting pages dirtied by uncommitted transactions
+     * (STEAL).  A stolen page is logged with a DELTA record of the bytes it
+     * changed, and the log is forced before the page is written, so that an
+     * abort or recovery can undo it from the log.  Off by default (NO STEAL).
+     */
+    public void setStealing(boolean stealing) {
+        this.stealing=stealing;
+    }
+
+    /**
+     * Start a background writer that writes back pages of the dirty page
+     * table, and takes fuzzy checkpoints if checkpointInterval is positive.
+     * @see BackgroundWriter
+     */
+    public synchronized void startBackgroundWriter(long interval,int pagesPerRound,long checkpointInterval) {
+        stopBackgroundWriter();
+        writer=new BackgroundWriter(this,interval,pagesPerRound,checkpointInterval);
+        writer.start();
+    }
+
+    /** Stop the background writer, if one is running. */
+    public synchronized void stopBackgroundWriter() {
+        if(writer!=null){
+            writer.shutdown();
+            writer=null;
+        }
+    }
+
+    /** Return true if dirty pages of uncommitted transactions may be evicted */
+    public boolean isStealing() {
+        return stealing;
+    }
+
+    /** Return the lock manager used by this buffer pool */
+    public LockManager getLockManager() {
+        return lockmanager;
+    }
+
+    /** Return the number of getPage calls served from the pool */
+    public long getHitCount() {
+        return hit_count.get();
+    }
+
+    /** Return the number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        return miss_count.get();
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -317,77 +161,111 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException{
         // some code goes here
-        boolean is_acquired=lockprocess.acquirelock(tid,pid,perm);
-
-        /**
-         * log by Sakura
-         * 下面的是通过依赖图判环来检测死锁的部分，默认情况下这段代码应该是非注释状态。
-         * 在使用下面的代码片段的时候，需要把这段代码注释。
-         */
-        while(!is_acquired) {
-            try{
-                Thread.sleep(100);
-            }
-            catch(InterruptedException e){
-                e.printStackTrace();
-            }
-            if (lockprocess.isexistCycle(tid)) {
-                throw new TransactionAbortedException();
-            }
-            is_acquired=lockprocess.acquirelock(tid,pid,perm);
-        }
+        acquireLock(tid,pid,perm);
+        return fetchPage(pid,false);
+    }
 
+    /**
+     * Helper function of getPage and pinPage
+     * Block until tid holds the lock on pid, aborting tid on deadlock.
+     */
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException{
+        lockmanager.acquireLock(tid,pid,perm);
+    }
 
-        /**
-         * log by Sakura
-         * 下面的是通过超时策略来检测死锁的部分，把上面的找环检测死锁的部分注释，下面的
-         * 取消注释就可以编译成功了。
-         */
-/*
-        Long begin=System.currentTimeMillis();
-        System.out.println(System.currentTimeMillis()+"begin"+currentThread().getName());
-        while(!is_acquired) {
-            Long end=System.currentTimeMillis();
-            System.out.println(System.currentTimeMillis()+"test"+currentThread().getName());
-            if(end-begin>3000){
-                throw new TransactionAbortedException();
-            }
-            try {
-                Thread.sleep(200);
-            }
-            catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            is_acquired=lockprocess.acquirelock(tid,pid,perm);
+    /**
+     * Retrieve the specified page like {@link #getPage}, and pin it in the
+     * buffer pool so that it cannot be evicted while the caller is using it.
+     * Every call must be paired with a call to {@link #unpinPage}.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException{
+        acquireLock(tid,pid,perm);
+        return fetchPage(pid,true);
+    }
+
+    /**
+     * Acquire the lock on a page like {@link #pinPage}, but only pin and
+     * return the page if it is already in the buffer pool, without reading it
+     * from disk.  A page that is not resident has no changes that are not on
+     * disk yet, so while the lock is held the caller may read it from its
+     * file instead, e.g. through a memory-mapped region.  A returned page
+     * must be unpinned with {@link #unpinPage}.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the pinned page, or null if it is not in the buffer pool
+     */
+    public Page pinPageIfResident(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException{
+        acquireLock(tid,pid,perm);
+        Page page=page_table.getAndPin(pid);
+        if(page!=null){
+            hit_count.incrementAndGet();
+            evictionpolicy.recordAccess(pid);
         }
-*/
-        /**
-         * log by Sakura
-         * 下面的代码是超时策略，但没有加入检测死锁机制，
-         * 因为AbortEvictionTest生成的数据包含死锁，但不能自动捕获抛出的异常，
-         * 而导致程序会异常终止，故检查AbortEvictionTest应使用这段代码。
-         * */
-/*
-        if(!is_acquired) {
-            try {
-                Thread.sleep(200);
-            }
-            catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            is_acquired=lockprocess.acquirelock(tid,pid,perm);
+        return page;
+    }
+
+    /**
+     * Release a pin taken by {@link #pinPage}.
+     *
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(PageId pid) {
+        page_table.unpin(pid);
+    }
+
+    /** Return the pin count of the specified page, 0 if it is not resident */
+    public int getPinCount(PageId pid) {
+        return page_table.getPinCount(pid);
+    }
+
+    /**
+     * Helper function of getPage and pinPage
+     * Look the page up in the page table, reading it from disk and evicting
+     * another page if needed. The caller must already hold the page lock.
+     */
+    private Page fetchPage(PageId pid,boolean pin) throws DbException{
+        Page page=pin?page_table.getAndPin(pid):page_table.get(pid);
+        if(page!=null){
+            hit_count.incrementAndGet();
+            evictionpolicy.recordAccess(pid);
+            return page;
         }
-*/
+        miss_count.incrementAndGet();
+        DbFile dbfile= Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page read_page=dbfile.readPage(pid);
+        page=installPage(read_page,pin,false);
+        evictionpolicy.recordAccess(pid);
+        return page;
+    }
 
-        if(!page_hashmap.containsKey(pid.hashCode())){
-            DbFile dbfile= Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page=dbfile.readPage(pid);
-            if(page_hashmap.size()>=num_Pages) {
+    /**
+     * Helper function of fetchPage and putDirtyPage
+     * Install a page in the page table, evicting pages first if it is not
+     * resident and the pool is full.  Frames are reserved under the monitor
+     * of the BufferPool, so that concurrent misses cannot push the pool past
+     * num_Pages or evict the same page twice; the page is read before.
+     * @param replace true to replace a resident version of the page, false
+     *     to keep it and return it instead
+     * @return the page now in the page table
+     */
+    private synchronized Page installPage(Page page,boolean pin,boolean replace) throws DbException{
+        if(!page_table.contains(page.getId())){
+            while(page_table.size()>=num_Pages) {
                 evictPage();
             }
-            page_hashmap.put(pid.hashCode(), page);
         }
-        return page_hashmap.get(pid.hashCode());
+        if(!replace) return page_table.putIfAbsent(page,pin);
+        page_table.put(page);
+        return page;
     }
 
     /**
@@ -402,7 +280,7 @@ public class BufferPool {
     public void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        lockprocess.releasePage(tid,pid);
+        lockmanager.releaseLock(tid,pid);
     }
 
     /**
@@ -420,7 +298,7 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return lockprocess.getLock(tid,p)!=null;
+        return lockmanager.holdsLock(tid,p);
     }
 
     /**
@@ -434,15 +312,24 @@ public class BufferPool {
             throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        if(commit) flushPages(tid);//写到磁盘上
-        else revertchanges(tid);//事务恢复
-
-        for(Integer it:page_hashmap.keySet()){
-            if(holdsLock(tid,page_hashmap.get(it).getId())){
-               // System.out.println("111"+System.currentTimeMillis());
-                releasePage(tid,page_hashmap.get(it).getId());
+        if(commit){
+            //没有经过Transaction提交的页在这里写回磁盘（FORCE）
+            flushPages(tid);
+            for(PageId now_pid:pagesDirtiedBy(tid)){
+                Page now_page=page_table.get(now_pid);
+                if(now_page!=null) now_page.setBeforeImage();
             }
+            stolen_tids.remove(tid);
+        }
+        else{
+            //被换出过的脏页已经写到磁盘上，要根据日志撤销
+            if(stolen_tids.remove(tid)) Database.getLogFile().rollback(tid);
+            revertchanges(tid,true);//事务恢复
         }
+
+        //释放该事务持有的全部锁，包括已经被换出的页上的锁
+        lockmanager.releaseAllLocks(tid);
+        dirty_pages.remove(tid);
     }
 
     /**
@@ -450,20 +337,53 @@ public class BufferPool {
      * added by Sakura
      * Revert changes made in specific transaction
      * */
-    public synchronized void revertchanges(TransactionId tid){
-
-        for(Integer it:page_hashmap.keySet()){
-            Page now_page=page_hashmap.get(it);
-            if(now_page.isDirty()==tid){
-                int now_tableid=now_page.getId().getTableId();
-                DbFile f=Database.getCatalog().getDatabaseFile(now_tableid);
-                Page revert_page=f.readPage(now_page.getId());
-                page_hashmap.put(it,revert_page);
-                //page_hashmap.get(it).setBeforeImage();
+    public void revertchanges(TransactionId tid){
+        revertchanges(tid,stolen_tids.contains(tid));
+    }
+
+    /**
+     * Helper function of revertchanges
+     * Restore the before image of every resident page dirtied by tid.  The
+     * disk copy may be older than the before image (NO-FORCE), so the page is
+     * replaced in memory.
+     * @param stolen whether pages of tid may have been written to disk, in
+     *     which case resident pages are restored even if they are clean and
+     *     are marked to be written back
+     */
+    private void revertchanges(TransactionId tid,boolean stolen){
+        for(PageId now_pid:pagesDirtiedBy(tid)){
+            Page now_page=page_table.get(now_pid);
+            if(now_page==null) continue;
+            if(now_page.isDirty()==tid||stolen){
+                Page before=now_page.getBeforeImage();
+                page_table.put(before);
+                if(stolen) page_table.markUnwritten(now_pid,-1);
+                // the free space map recorded the changes of tid
+                if(before instanceof HeapPage){
+                    DbFile file=Database.getCatalog().getDatabaseFile(now_pid.getTableId());
+                    ((HeapFile)file).getFreeSpaceMap().update(now_pid.getPageNumber(),((HeapPage)before).getNumEmptySlots());
+                }
             }
         }
     }
 
+    /**
+     * Helper function of flushPages and revertchanges
+     * Return the pages the transaction may have dirtied: the pages it
+     * changed through insertTuple/deleteTuple, and the pages it holds an
+     * exclusive lock on (callers may also dirty a page they got from getPage).
+     * This is proportional to the transaction's footprint, not the pool size.
+     */
+    private Set<PageId> pagesDirtiedBy(TransactionId tid){
+        HashSet<PageId> ret=new HashSet<>();
+        Set<PageId> dirtied=dirty_pages.get(tid);
+        if(dirtied!=null) ret.addAll(dirtied);
+        for(PageId pid:lockmanager.getLockedPages(tid)){
+            if(lockmanager.getLockMode(tid,pid)==Permissions.READ_WRITE) ret.add(pid);
+        }
+        return ret;
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other
@@ -475,6 +395,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
      *
+     * Adds the entries of the tuple to the secondary indexes of the table.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -483,12 +405,16 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        // files may reuse pages they already hold without asking for them
+        lockmanager.checkWounded(tid);
         DbFile now_dbfile=Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> temp_arraylist=now_dbfile.insertTuple(tid,t);
         for (Page now_page:temp_arraylist) {
-            System.out.println(now_page.getId()+"insert1");
             now_page.markDirty(true,tid);
-            page_hashmap.put(now_page.getId().hashCode(),now_page);
+            putDirtyPage(tid,now_page);
+        }
+        for(SecondaryIndex index:Database.getCatalog().getIndexes(tableId)){
+            index.insert(tid,t);
         }
     }
 
@@ -502,6 +428,9 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
      *
+     * Removes the entries of the tuple from the secondary indexes of the
+     * table.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
@@ -509,24 +438,47 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile now_dbfile=Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        lockmanager.checkWounded(tid);
+        RecordId rid=t.getRecordId();
+        int tableId=rid.getPageId().getTableId();
+        DbFile now_dbfile=Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> temp_arraylist=now_dbfile.deleteTuple(tid,t);
         for(Page now_page:temp_arraylist){
-            System.out.println(now_page.getId()+"delete1");
             now_page.markDirty(true,tid);
-            page_hashmap.put(now_page.getId().hashCode(),now_page);
+            putDirtyPage(tid,now_page);
+        }
+        for(SecondaryIndex index:Database.getCatalog().getIndexes(tableId)){
+            index.delete(tid,t.getField(index.getField()),rid);
+        }
+    }
+
+    /**
+     * Helper function of insertTuple and deleteTuple
+     * Install a page dirtied by an operation in the page table, replacing
+     * any existing version of that page, and remember it in the dirty set
+     * of the transaction.
+     */
+    private void putDirtyPage(TransactionId tid,Page page) throws DbException{
+        Set<PageId> dirtied=dirty_pages.get(tid);
+        if(dirtied==null){
+            dirty_pages.putIfAbsent(tid,ConcurrentHashMap.newKeySet());
+            dirtied=dirty_pages.get(tid);
         }
+        dirtied.add(page.getId());
+        installPage(page,false,true);
+        evictionpolicy.recordAccess(page.getId());
     }
 
     /**
-     * Flush all dirty pages to disk.
+     * Flush all dirty pages to disk, including pages holding committed
+     * changes that were only logged.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(Page now_page:page_hashmap.values()){
+        for(Page now_page:page_table.pages()){
             flushPage(now_page.getId());
         }
     }
@@ -539,36 +491,142 @@ public class BufferPool {
      Also used by B+ tree files to ensure that deleted pages
      are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        page_hashmap.remove(pid.hashCode());
+        page_table.remove(pid);
+        evictionpolicy.recordRemoval(pid);
     }
 
     /**
      * Flushes a certain page to disk
+     * Write-ahead logging: a dirty page is logged with a DELTA record and
+     * the log is forced before the page itself is written.  A page that is
+     * only marked unwritten was logged when its transaction committed.
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        //System.out.println(test_num++);
-        Page now_page=page_hashmap.get(pid.hashCode());
-        if(now_page.isDirty()!=null){
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(now_page);
+        // pin the frame so that it cannot be evicted or discarded while it is written
+        Page now_page=page_table.getAndPin(pid);
+        if(now_page==null) return;
+        try{
+            TransactionId dirtier=now_page.isDirty();
+            if(dirtier!=null){
+                LogFile logfile=Database.getLogFile();
+                long lsn;
+                //记日志和记录recLSN一起完成，检查点看到的脏页表不会漏掉这一页
+                synchronized(logfile){
+                    lsn=logfile.logWrite(dirtier,now_page.getBeforeImage(),now_page);
+                    page_table.markUnwritten(pid,lsn);
+                }
+                logfile.forceTo(lsn);
+                stolen_tids.add(dirtier);
+                long version=page_table.startWrite(pid);
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(now_page);
+                now_page.markDirty(false,null);
+                page_table.finishWrite(pid,version);
+            }
+            else{
+                writeBack(pid,now_page);
+            }
+        }
+        finally {
+            page_table.unpin(pid);
+        }
+    }
+
+    /**
+     * Helper function of flushPage and writeBackPages
+     * Write a pinned page marked unwritten back to disk.  The before image is
+     * written instead of the page: it is the last logged content of the page,
+     * while a transaction may be changing the page itself.
+     */
+    private void writeBack(PageId pid,Page now_page) throws IOException{
+        LogFile logfile=Database.getLogFile();
+        Page image;
+        long version,lsn;
+        //提交时在日志锁内先更新前像再标记未写回，这里拿到的前像和pageLSN是一致的
+        synchronized(logfile){
+            version=page_table.startWrite(pid);
+            if(version<0) return;
+            image=now_page.getBeforeImage();
+            lsn=page_table.getPageLSN(pid);
+        }
+        logfile.forceTo(lsn);
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+        page_table.finishWrite(pid,version);
+    }
+
+    /**
+     * Log the pages dirtied by the specified transaction without writing
+     * them (NO-FORCE).  Called when the transaction commits, before its
+     * COMMIT record is written; the pages are kept in the pool, marked
+     * unwritten, and written back when they are evicted or flushed, or by
+     * the background writer.
+     */
+    public void logDirtyPages(TransactionId tid) throws IOException {
+        LogFile logfile=Database.getLogFile();
+        for(PageId now_pid:pagesDirtiedBy(tid)){
+            Page now_page=page_table.get(now_pid);
+            if(now_page==null||now_page.isDirty()!=tid) continue;
+            //先更新前像并标记未写回再清除脏位，换出时不会看到一个既不脏也未标记的页
+            synchronized(logfile){
+                long lsn=logfile.logWrite(tid,now_page.getBeforeImage(),now_page);
+                now_page.setBeforeImage();
+                page_table.markUnwritten(now_pid,lsn);
+            }
             now_page.markDirty(false,null);
         }
     }
 
+    /**
+     * Return the dirty page table: the recLSN of every page whose logged
+     * changes may not be on disk yet.  Used by fuzzy checkpoints; does not
+     * block transactions.
+     */
+    public Map<PageId,Long> dirtyPageTable(){
+        return page_table.dirtyPageTable();
+    }
+
+    /**
+     * Write back up to max pages of the dirty page table that no transaction
+     * has dirty, oldest recLSN first, so that redo after a crash and log
+     * truncation do not have to reach far back in the log.
+     * @return the number of pages written
+     */
+    public int writeBackPages(int max) throws IOException {
+        List<Map.Entry<PageId,Long>> entries=new ArrayList<>(page_table.dirtyPageTable().entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        int written=0;
+        for(Map.Entry<PageId,Long> e:entries){
+            if(written>=max) break;
+            PageId pid=e.getKey();
+            Page now_page=page_table.getAndPin(pid);
+            if(now_page==null) continue;
+            try{
+                //脏页要等事务提交或被换出时再写
+                if(now_page.isDirty()!=null) continue;
+                writeBack(pid,now_page);
+                written++;
+            }
+            finally {
+                page_table.unpin(pid);
+            }
+        }
+        return written;
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for(Integer it:page_hashmap.keySet()){
-            Page now_page=page_hashmap.get(it);
-            if(now_page.isDirty()==tid){
-                flushPage(now_page.getId());
+        for(PageId now_pid:pagesDirtiedBy(tid)){
+            Page now_page=page_table.get(now_pid);
+            if(now_page!=null&&now_page.isDirty()==tid){
+                flushPage(now_pid);
             }
         }
     }
@@ -580,29 +638,49 @@ public class BufferPool {
     private synchronized void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        /*
-        Integer toevict_page_hashcode= new ArrayList<>(page_hashmap.keySet()).get(0);
-        PageId toevict_pageid=page_hashmap.get(toevict_page_hashcode).getId();
-        try{
-            flushPage(toevict_pageid);
-        }
-        catch(IOException ioe_exception){
-            ioe_exception.printStackTrace();
-        }
-        discardPage(toevict_pageid);
-        */
-        Page to_test_page=null;
-        Integer to_remove_hashcode=null;
-        for(Integer it:page_hashmap.keySet()) {
-            to_test_page = page_hashmap.get(it);
-            if (to_test_page.isDirty() != null) {//HeapPage的isDirty()如果是dirty会返回TransactionId
-                to_test_page=null;
+        // ask the eviction policy for candidates and evict the first clean one
+        // that no operator has pinned; if there is none, write back the first
+        // page whose changes are committed, or (STEAL) the first dirty page of
+        // a transaction the log can roll back
+        Iterator<PageId> candidates=evictionpolicy.evictionOrder();
+        PageId writeback=null;
+        while(candidates.hasNext()){
+            PageId candidate=candidates.next();
+            Page page=page_table.get(candidate);
+            if(page==null){
+                evictionpolicy.recordRemoval(candidate);
                 continue;
             }
-            to_remove_hashcode=it;
-            break;
+            if(page_table.removeIfEvictable(candidate)!=null){
+                evictionpolicy.recordRemoval(candidate);
+                return;
+            }
+            if(writeback==null&&page_table.getPinCount(candidate)==0&&canWriteBack(page)){
+                writeback=candidate;
+            }
         }
-        if(to_test_page==null) throw new DbException("there are all dirty page");
-        page_hashmap.remove(to_remove_hashcode);
+        if(writeback!=null){
+            try{
+                flushPage(writeback);
+            }
+            catch(IOException e){
+                throw new DbException("could not write back page "+writeback+": "+e.getMessage());
+            }
+            if(page_table.removeIfEvictable(writeback)!=null){
+                evictionpolicy.recordRemoval(writeback);
+                return;
+            }
+        }
+        throw new DbException("there are all dirty or pinned page");
+    }
+
+    /**
+     * Helper function of evictPage
+     * Return true if the page may be written back to make room.
+     */
+    private boolean canWriteBack(Page page){
+        TransactionId dirtier=page.isDirty();
+        if(dirtier==null) return page_table.isUnwritten(page.getId());
+        return stealing&&Database.getLogFile().isActive(dirtier);
     }
 }
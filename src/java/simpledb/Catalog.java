@@ -20,6 +20,8 @@ public class Catalog {
 
     private List<table> table_list;
     private List<Integer> tableID_list;
+    private Map<Integer,List<SecondaryIndex>> index_map; // table id -> indexes on the table
+    private Map<Integer,SecondaryIndex> index_files;     // index file id -> index
     private class table{
         public DbFile tb_dbfile;
         public String tb_name;
@@ -42,6 +44,8 @@ public class Catalog {
         // some code goes here
         table_list=new ArrayList<>();
         tableID_list=new ArrayList<>();
+        index_map=new ConcurrentHashMap<>();
+        index_files=new ConcurrentHashMap<>();
     }
 
     /**
@@ -58,6 +62,8 @@ public class Catalog {
         table temp_table=new table(file,name,pkeyField);
         for(int i=0;i<table_list.size();i++){
             if(name.equals(table_list.get(i).tb_name)){
+                // the indexes of a replaced table do not index the new one
+                if(table_list.get(i).tb_tableID!=temp_table.tb_tableID) dropIndexes(table_list.get(i).tb_tableID);
                 table_list.set(i,temp_table);
                 tableID_list.set(i,temp_table.tb_tableID);
                 return;
@@ -114,13 +120,16 @@ public class Catalog {
         for(int i=0;i<table_list.size();i++){
             if(table_list.get(i).tb_tableID==tableid) return table_list.get(i).tb_dbfile.getTupleDesc();
         }
+        SecondaryIndex index=index_files.get(tableid);
+        if(index!=null) return index.getFile().getTupleDesc();
         //System.out.println(1);
         throw new NoSuchElementException();
     }
 
     /**
      * Returns the DbFile that can be used to read the contents of the
-     * specified table.
+     * specified table.  The B+ tree files of secondary indexes are found
+     * here too, by their id.
      * @param tableid The id of the table, as specified by the DbFile.getId()
      *     function passed to addTable
      */
@@ -129,10 +138,63 @@ public class Catalog {
         for(int i=0;i<table_list.size();i++){
             if(table_list.get(i).tb_tableID==tableid) return table_list.get(i).tb_dbfile;
         }
+        SecondaryIndex index=index_files.get(tableid);
+        if(index!=null) return index.getFile();
         //System.out.println(1);
         throw new NoSuchElementException();
     }
 
+    /**
+     * Add a secondary index on a table to the catalog, replacing any index
+     * on the same field.  From then on BufferPool.insertTuple and deleteTuple
+     * maintain the index.  Its file can be read through getDatabaseFile, but
+     * it is not listed by tableIdIterator.
+     * @param index the index, on a table of the catalog
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public synchronized void addIndex(SecondaryIndex index) throws NoSuchElementException {
+        getDatabaseFile(index.getTableId());
+        List<SecondaryIndex> indexes=new ArrayList<>();
+        for(SecondaryIndex other:getIndexes(index.getTableId())){
+            if(other.getField()==index.getField()) index_files.remove(other.getId());
+            else indexes.add(other);
+        }
+        indexes.add(index);
+        index_files.put(index.getId(),index);
+        index_map.put(index.getTableId(),Collections.unmodifiableList(indexes));
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table, maybe none.
+     * @param tableid The id of the table
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes=index_map.get(tableid);
+        return indexes==null?Collections.<SecondaryIndex>emptyList():indexes;
+    }
+
+    /**
+     * Returns the secondary index on a field of the specified table, or null
+     * if the field is not indexed.
+     * @param tableid The id of the table
+     * @param field the index of the field
+     */
+    public SecondaryIndex getIndex(int tableid,int field) {
+        for(SecondaryIndex index:getIndexes(tableid)){
+            if(index.getField()==field) return index;
+        }
+        return null;
+    }
+
+    /**
+     * Helper function of addTable
+     * Forget the secondary indexes on a table.
+     */
+    private synchronized void dropIndexes(int tableid) {
+        for(SecondaryIndex index:getIndexes(tableid)) index_files.remove(index.getId());
+        index_map.remove(tableid);
+    }
+
     public String getPrimaryKey(int tableid) {
         // some code goes here
         for(int i=0;i<table_list.size();i++){
@@ -162,6 +224,8 @@ public class Catalog {
         // some code goes here
         table_list.clear();
         tableID_list.clear();
+        index_map.clear();
+        index_files.clear();
        // System.out.println(1);
     }
     
@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ClockEvictionPolicy implements the CLOCK (second chance) page replacement
+ * algorithm.  Resident pages sit in a circular list of slots, each with a
+ * reference bit that is set whenever the page is accessed.  To find a victim
+ * the clock hand sweeps the slots, clearing set reference bits and offering
+ * the first page whose bit was already clear.
+ * <p>
+ * A page that is touched between two sweeps of the hand survives, so hot
+ * pages stay resident while pages touched once (e.g. by a sequential scan)
+ * are replaced on the next sweep.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private final ArrayList<PageId> slots;
+    private final ArrayList<Boolean> referenced;
+    private final HashMap<PageId, Integer> slotOf;
+    private final ArrayDeque<Integer> freeSlots;
+    private int hand;
+
+    public ClockEvictionPolicy() {
+        slots = new ArrayList<PageId>();
+        referenced = new ArrayList<Boolean>();
+        slotOf = new HashMap<PageId, Integer>();
+        freeSlots = new ArrayDeque<Integer>();
+        hand = 0;
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced.set(slot, true);
+            return;
+        }
+        // a newly loaded page does not get its reference bit set, so that a
+        // page touched only once is the first to go on the next sweep
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.poll();
+            slots.set(slot, pid);
+            referenced.set(slot, false);
+        } else {
+            slot = slots.size();
+            slots.add(pid);
+            referenced.add(false);
+        }
+        slotOf.put(pid, slot);
+    }
+
+    public synchronized void recordRemoval(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot == null) return;
+        slots.set(slot, null);
+        referenced.set(slot, false);
+        freeSlots.add(slot);
+    }
+
+    public Iterator<PageId> evictionOrder() {
+        return new ClockIterator();
+    }
+
+    /**
+     * Lazily sweeps the clock hand.  Every page gets at most one second
+     * chance per sweep, so after two full revolutions all resident pages
+     * have been offered and the iteration ends.  A page rejected by the
+     * caller is not offered again by the same iterator.
+     */
+    private class ClockIterator implements Iterator<PageId> {
+        private PageId nextToReturn = null;
+        private final HashSet<PageId> offered = new HashSet<PageId>();
+        private int stepsLeft;
+
+        ClockIterator() {
+            synchronized (ClockEvictionPolicy.this) {
+                stepsLeft = 2 * slots.size();
+            }
+        }
+
+        public boolean hasNext() {
+            if (nextToReturn != null) return true;
+            synchronized (ClockEvictionPolicy.this) {
+                while (stepsLeft > 0 && !slots.isEmpty()) {
+                    stepsLeft--;
+                    if (hand >= slots.size()) hand = 0;
+                    int slot = hand++;
+                    PageId pid = slots.get(slot);
+                    if (pid == null || offered.contains(pid)) continue;
+                    if (referenced.get(slot)) {
+                        referenced.set(slot, false);
+                        continue;
+                    }
+                    offered.add(pid);
+                    nextToReturn = pid;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public PageId next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            PageId ret = nextToReturn;
+            nextToReturn = null;
+            return ret;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
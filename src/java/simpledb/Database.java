@@ -21,17 +21,115 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    /**
+     * System property selecting the page replacement policy of the buffer
+     * pool: "clock" (the default) or "lru-k".  For example, on the command
+     * line, use -Dsimpledb.EvictionPolicy=lru-k
+     */
+    public final static String EVICTION_POLICY_PROPERTY = "simpledb.EvictionPolicy";
+    private final String _evictionpolicy;
+
+    /**
+     * System property enabling the background deadlock detector, giving the
+     * time between two runs in milliseconds.  When it is not set, every lock
+     * request that has to wait checks for a deadlock itself.  For example,
+     * on the command line, use -Dsimpledb.DeadlockDetector=50
+     */
+    public final static String DEADLOCK_DETECTOR_PROPERTY = "simpledb.DeadlockDetector";
+
+    /**
+     * System property selecting the transaction the background deadlock
+     * detector aborts on a cycle: "youngest" (the default) or "least-work".
+     */
+    public final static String DEADLOCK_VICTIM_PROPERTY = "simpledb.DeadlockVictim";
+
+    /**
+     * System property selecting how the lock manager handles deadlocks:
+     * "detect" (the default), "wait-die", "wound-wait" or "no-wait".  The
+     * background deadlock detector is only started for "detect".
+     */
+    public final static String DEADLOCK_POLICY_PROPERTY = "simpledb.DeadlockPolicy";
+
+    /**
+     * System property allowing the buffer pool to evict pages dirtied by
+     * uncommitted transactions (STEAL).  For example, on the command line,
+     * use -Dsimpledb.Steal=true
+     */
+    public final static String STEAL_PROPERTY = "simpledb.Steal";
+
+    /**
+     * System property enabling group commit: commits wait for a background
+     * thread that forces the log once for a group of commits.  The value is
+     * the time the thread waits after the first pending commit before
+     * forcing the log, in milliseconds.  For example, on the command line,
+     * use -Dsimpledb.GroupCommit=0
+     */
+    public final static String GROUP_COMMIT_PROPERTY = "simpledb.GroupCommit";
+
+    /**
+     * System property enabling the background writer of the buffer pool,
+     * giving the time between two rounds in milliseconds.  For example, on
+     * the command line, use -Dsimpledb.BackgroundWriter=100
+     */
+    public final static String BACKGROUND_WRITER_PROPERTY = "simpledb.BackgroundWriter";
+
+    /**
+     * System property giving the time between two fuzzy checkpoints taken by
+     * the background writer, in milliseconds.  Ignored unless the background
+     * writer is enabled.
+     */
+    public final static String CHECKPOINT_INTERVAL_PROPERTY = "simpledb.CheckpointInterval";
+
+    /**
+     * System property giving the size of the segment files of the log, in
+     * bytes.  Truncating the log deletes whole segments, so smaller segments
+     * give back space sooner.  For example, on the command line, use
+     * -Dsimpledb.LogSegmentSize=1048576
+     */
+    public final static String LOG_SEGMENT_SIZE_PROPERTY = "simpledb.LogSegmentSize";
+
+    /**
+     * System property giving the number of threads that redo pages during
+     * recovery.  Defaults to the number of processors.  For example, on the
+     * command line, use -Dsimpledb.RecoveryThreads=1
+     */
+    public final static String RECOVERY_THREADS_PROPERTY = "simpledb.RecoveryThreads";
+
+    /**
+     * System property making heap file scans read the pages that are not in
+     * the buffer pool from a memory mapping of the file (see
+     * {@link HeapFile#setMappedScans}).  For example, on the command line,
+     * use -Dsimpledb.MappedScans=true
+     */
+    public final static String MAPPED_SCANS_PROPERTY = "simpledb.MappedScans";
+
+    /**
+     * System property giving the number of pages a heap file grows by when
+     * inserts need a new page (see {@link HeapFile#setExtentPages}).  For
+     * example, on the command line, use -Dsimpledb.HeapFileExtent=1
+     */
+    public final static String HEAP_FILE_EXTENT_PROPERTY = "simpledb.HeapFileExtent";
+
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _evictionpolicy = System.getProperty(EVICTION_POLICY_PROPERTY, "clock");
+        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES, newEvictionPolicy(_evictionpolicy));
+        configureBufferPool(_bufferpool);
         LogFile tmp = null;
         try {
-            tmp = new LogFile(new File(LOGFILENAME));
+            tmp = new LogFile(new File(LOGFILENAME),
+                    Long.getLong(LOG_SEGMENT_SIZE_PROPERTY, LogSegments.DEFAULT_SEGMENT_SIZE));
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
         _logfile = tmp;
+        String groupcommit = System.getProperty(GROUP_COMMIT_PROPERTY);
+        if (groupcommit != null)
+            _logfile.startGroupCommit(Long.parseLong(groupcommit));
+        String recoverythreads = System.getProperty(RECOVERY_THREADS_PROPERTY);
+        if (recoverythreads != null)
+            _logfile.setRecoveryThreads(Integer.parseInt(recoverythreads));
         // startControllerThread();
     }
 
@@ -50,16 +148,80 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /**
+     * Create the eviction policy with the specified name
+     * @param name "clock" or "lru-k" (case insensitive)
+     * @throws IllegalArgumentException if the name is not a known policy
+     */
+    public static EvictionPolicy newEvictionPolicy(String name) {
+        if (name.equalsIgnoreCase("clock"))
+            return new ClockEvictionPolicy();
+        if (name.equalsIgnoreCase("lru-k") || name.equalsIgnoreCase("lruk"))
+            return new LRUKEvictionPolicy();
+        throw new IllegalArgumentException("unknown eviction policy " + name);
+    }
+
+    /**
+     * Create the deadlock policy with the specified name
+     * @param name "detect", "wait-die", "wound-wait" or "no-wait" (case insensitive)
+     * @throws IllegalArgumentException if the name is not a known policy
+     */
+    public static LockManager.DeadlockPolicy parseDeadlockPolicy(String name) {
+        String normalized = name.replace("-", "").replace("_", "");
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+            if (policy.name().replace("_", "").equalsIgnoreCase(normalized))
+                return policy;
+        }
+        throw new IllegalArgumentException("unknown deadlock policy " + name);
+    }
+
+    /**
+     * Configure the buffer pool and its lock manager from the system
+     * properties: the steal policy, the background writer, the deadlock
+     * policy, and the background deadlock detector
+     */
+    private static void configureBufferPool(BufferPool bufferpool) {
+        bufferpool.setStealing(Boolean.getBoolean(STEAL_PROPERTY));
+        String writer = System.getProperty(BACKGROUND_WRITER_PROPERTY);
+        if (writer != null) {
+            bufferpool.startBackgroundWriter(Long.parseLong(writer),
+                    BackgroundWriter.DEFAULT_PAGES_PER_ROUND,
+                    Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, 0));
+        }
+        LockManager lockmanager = bufferpool.getLockManager();
+        LockManager.DeadlockPolicy deadlockpolicy = parseDeadlockPolicy(
+                System.getProperty(DEADLOCK_POLICY_PROPERTY, "detect"));
+        lockmanager.setDeadlockPolicy(deadlockpolicy);
+        String interval = System.getProperty(DEADLOCK_DETECTOR_PROPERTY);
+        if (interval == null || deadlockpolicy != LockManager.DeadlockPolicy.DETECT)
+            return;
+        DeadlockDetector.VictimPolicy policy = DeadlockDetector.parseVictimPolicy(
+                System.getProperty(DEADLOCK_VICTIM_PROPERTY, "youngest"));
+        lockmanager.startDeadlockDetector(Long.parseLong(interval), policy);
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, newEvictionPolicy(_instance.get()._evictionpolicy));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * using the specified eviction policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy policy) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            BufferPool bufferpool = new BufferPool(pages, policy);
+            configureBufferPool(bufferpool);
+            _instance.get()._bufferpool.getLockManager().stopDeadlockDetector();
+            _instance.get()._bufferpool.stopBackgroundWriter();
+            bufferPoolF.set(_instance.get(), bufferpool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,6 +237,9 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        _instance.get()._bufferpool.getLockManager().stopDeadlockDetector();
+        _instance.get()._bufferpool.stopBackgroundWriter();
+        _instance.get()._logfile.stopGroupCommit();
         _instance.set(new Database());
     }
 
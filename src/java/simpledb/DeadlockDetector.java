@@ -0,0 +1,80 @@
+package simpledb;
+
+/**
+ * DeadlockDetector is a background thread that periodically searches the
+ * waits-for graph of a {@link LockManager} for cycles and breaks each cycle
+ * by aborting one of its transactions.
+ * <p>
+ * While the detector runs, lock requests only maintain the waits-for graph
+ * and never search it, so the cost of deadlock detection is taken off the
+ * lock request path.  The price is that a deadlock is only resolved at the
+ * next run of the detector.
+ */
+public class DeadlockDetector extends Thread {
+
+    /** How the transaction to abort is chosen among those on a cycle. */
+    public enum VictimPolicy {
+        /** abort the transaction that started last */
+        YOUNGEST,
+        /** abort the transaction holding the fewest locks */
+        LEAST_WORK
+    }
+
+    /** Default time between two runs of the detector, in milliseconds. */
+    public static final long DEFAULT_INTERVAL = 50;
+
+    private final LockManager lockmanager;
+    private final long interval;
+    private final VictimPolicy policy;
+    private volatile boolean running;
+
+    /**
+     * @param lockmanager the lock manager whose deadlocks to resolve
+     * @param interval time between two runs, in milliseconds
+     * @param policy how to choose the victims
+     */
+    public DeadlockDetector(LockManager lockmanager, long interval, VictimPolicy policy) {
+        super("DeadlockDetector");
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval must be positive");
+        this.lockmanager = lockmanager;
+        this.interval = interval;
+        this.policy = policy;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return policy;
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            lockmanager.resolveDeadlocks(policy);
+        }
+    }
+
+    /** Stop the detector; returns without waiting for the thread to exit. */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    /**
+     * Parse the name of a victim policy
+     * @param name "youngest" or "least-work" (case insensitive)
+     * @throws IllegalArgumentException if the name is not a known policy
+     */
+    public static VictimPolicy parseVictimPolicy(String name) {
+        if (name.equalsIgnoreCase("youngest"))
+            return VictimPolicy.YOUNGEST;
+        if (name.equalsIgnoreCase("least-work") || name.equalsIgnoreCase("leastwork"))
+            return VictimPolicy.LEAST_WORK;
+        throw new IllegalArgumentException("unknown victim policy " + name);
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.util.Iterator;
+
+/**
+ * EvictionPolicy decides which resident page of the BufferPool should be
+ * replaced when a new page has to be brought in and the pool is full.
+ * <p>
+ * The BufferPool reports every page access and every page that leaves the
+ * pool; when it needs a free frame it walks the candidates returned by
+ * {@link #evictionOrder()} and evicts the first one it is allowed to
+ * (e.g. the first clean page under NO STEAL).
+ * <p>
+ * Implementations must be thread safe, since the BufferPool calls into them
+ * from every thread that fetches pages.
+ *
+ * @see BufferPool
+ * @see ClockEvictionPolicy
+ * @see LRUKEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Record that the specified page has been accessed.  Called both when a
+     * page is loaded into the pool and on every buffer pool hit.
+     *
+     * @param pid the id of the accessed page
+     */
+    public void recordAccess(PageId pid);
+
+    /**
+     * Record that the specified page is no longer resident in the pool,
+     * either because it was evicted or because it was discarded.
+     *
+     * @param pid the id of the removed page
+     */
+    public void recordRemoval(PageId pid);
+
+    /**
+     * Returns the resident pages in the order they should be considered for
+     * eviction, best victim first.  The iterator may be lazy and may update
+     * the policy state as it advances (e.g. clearing reference bits), so the
+     * caller should stop iterating as soon as it has found a victim.
+     *
+     * @return an iterator over eviction candidates
+     */
+    public Iterator<PageId> evictionOrder();
+}
@@ -0,0 +1,355 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ExternalSort is an ORDER BY that does not need its input to fit in memory.
+ * The tuples of the child are read in runs of a bounded number of tuples;
+ * each run is sorted in memory and, unless the whole input fits in a single
+ * run, written to a temporary file.  The runs are then merged, at most
+ * {@link #MERGE_FAN_IN} at a time, until one merge pass produces the output.
+ * <p>
+ * The sort is stable.  Tuples read back from a run file have no RecordId.
+ */
+public class ExternalSort extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default heap memory, in bytes, taken by the tuples of a run sorted in
+     * memory, as estimated by {@link #estimateHeapSize}
+     */
+    public static final int DEFAULT_RUN_BYTES = 16 * 1024 * 1024;
+    /** Largest number of runs merged at once */
+    public static final int MERGE_FAN_IN = 64;
+
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int sortField;
+    private final boolean asc;
+    private final int runTuples;
+    private final TupleComparator comparator;
+
+    private ArrayList<Tuple> memoryRun; // the input, if it fit in one run
+    private Iterator<Tuple> it;
+    private ArrayList<Run> runs = new ArrayList<Run>();
+    private Merge merge;
+
+    /**
+     * Creates a new ExternalSort node over the tuples from the iterator,
+     * sorting runs that take about {@link #DEFAULT_RUN_BYTES} of heap in
+     * memory.
+     *
+     * @param sortField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public ExternalSort(int sortField, boolean asc, OpIterator child) {
+        this(sortField, asc, child,
+                Math.max(1, DEFAULT_RUN_BYTES / estimateHeapSize(child.getTupleDesc())));
+    }
+
+    /**
+     * Estimate the heap memory taken by a tuple of a run: the Tuple, its
+     * Field array and one Field object per column, plus its slot in the run.
+     * This is several times the serialized size of the tuple, which is what
+     * is written to a run file.
+     *
+     * @param td the description of the tuples
+     * @return the estimated size of a tuple on the heap, in bytes
+     */
+    public static int estimateHeapSize(TupleDesc td) {
+        // Tuple object, Field[] header and the reference in the run's array
+        int size = 24 + 16 + 8;
+        for (int i = 0; i < td.numFields(); i++) {
+            size += 8; // the reference in the Field[]
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                // StringField, String and its byte array, at most maxSize long
+                size += 24 + 24 + 16 + td.getFieldType(i).getLen();
+            } else {
+                size += 16; // IntField
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Creates a new ExternalSort node over the tuples from the iterator.
+     *
+     * @param sortField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param runTuples
+     *            the number of tuples sorted in memory per run.
+     */
+    public ExternalSort(int sortField, boolean asc, OpIterator child, int runTuples) {
+        if (runTuples < 1)
+            throw new IllegalArgumentException("runs must hold at least one tuple");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.sortField = sortField;
+        this.asc = asc;
+        this.runTuples = runTuples;
+        this.comparator = new TupleComparator(sortField, asc);
+    }
+
+    public int getSortField() {
+        return sortField;
+    }
+
+    public boolean isASC() {
+        return asc;
+    }
+
+    /** @return the number of run files the input was split into, 0 if it was sorted in memory */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        try {
+            ArrayList<Tuple> run = new ArrayList<Tuple>();
+            while (child.hasNext()) {
+                run.add(child.next());
+                if (run.size() == runTuples && child.hasNext()) {
+                    runs.add(writeRun(run));
+                    run.clear();
+                }
+            }
+            Collections.sort(run, comparator);
+            if (runs.isEmpty()) {
+                memoryRun = run;
+            } else {
+                if (!run.isEmpty())
+                    runs.add(writeRun(run));
+                run = null;
+                while (runs.size() > MERGE_FAN_IN)
+                    mergePass();
+            }
+            rewind();
+        } catch (IOException e) {
+            deleteRuns();
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+        super.open();
+    }
+
+    /**
+     * Helper function of open: sort a run in memory and write it to a new
+     * temporary file.
+     */
+    private Run writeRun(ArrayList<Tuple> run) throws IOException {
+        Collections.sort(run, comparator);
+        Run r = new Run();
+        DataOutputStream dos = r.create();
+        try {
+            for (Tuple t : run)
+                writeTuple(dos, t);
+            r.count = run.size();
+        } finally {
+            dos.close();
+        }
+        return r;
+    }
+
+    /**
+     * Helper function of open: merge the runs in groups of MERGE_FAN_IN,
+     * replacing them with the merged runs.
+     */
+    private void mergePass() throws IOException {
+        ArrayList<Run> merged = new ArrayList<Run>();
+        for (int from = 0; from < runs.size(); from += MERGE_FAN_IN) {
+            List<Run> group = runs.subList(from, Math.min(runs.size(), from + MERGE_FAN_IN));
+            Run r = new Run();
+            Merge m = new Merge(group);
+            DataOutputStream dos = r.create();
+            try {
+                Tuple t;
+                while ((t = m.next()) != null) {
+                    writeTuple(dos, t);
+                    r.count++;
+                }
+            } finally {
+                dos.close();
+                m.close();
+            }
+            for (Run done : group)
+                done.file.delete();
+            merged.add(r);
+        }
+        runs = merged;
+    }
+
+    private static void writeTuple(DataOutputStream dos, Tuple t) throws IOException {
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+            t.getField(i).serialize(dos);
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        it = null;
+        memoryRun = null;
+        deleteRuns();
+    }
+
+    private void deleteRuns() {
+        if (merge != null) {
+            merge.close();
+            merge = null;
+        }
+        for (Run r : runs)
+            r.file.delete();
+        runs.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (memoryRun != null) {
+            it = memoryRun.iterator();
+            return;
+        }
+        if (merge != null)
+            merge.close();
+        try {
+            merge = new Merge(runs);
+        } catch (IOException e) {
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns tuples from the child operator
+     * in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null)
+            return it.hasNext() ? it.next() : null;
+        if (merge == null)
+            return null;
+        try {
+            return merge.next();
+        } catch (IOException e) {
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+    /** A sorted run of tuples in a temporary file */
+    private static class Run {
+        File file;
+        long count;
+
+        DataOutputStream create() throws IOException {
+            file = File.createTempFile("sortrun", ".tmp");
+            file.deleteOnExit();
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+    }
+
+    /** Reads the next tuple of a run */
+    private class RunReader {
+        final int index;
+        final DataInputStream dis;
+        long remaining;
+        Tuple head;
+
+        RunReader(int index, Run run) throws IOException {
+            this.index = index;
+            this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file)));
+            this.remaining = run.count;
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                head = null;
+                return false;
+            }
+            remaining--;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(dis));
+            } catch (java.text.ParseException e) {
+                throw new IOException(e.getMessage());
+            }
+            head = t;
+            return true;
+        }
+    }
+
+    /**
+     * Merges runs with a priority queue of their first tuples.  Ties go to
+     * the earlier run, which keeps the sort stable.
+     */
+    private class Merge {
+        private final PriorityQueue<RunReader> heads;
+        private final ArrayList<RunReader> readers = new ArrayList<RunReader>();
+
+        Merge(List<Run> group) throws IOException {
+            heads = new PriorityQueue<RunReader>(Math.max(1, group.size()),
+                    new Comparator<RunReader>() {
+                        public int compare(RunReader a, RunReader b) {
+                            int cmp = comparator.compare(a.head, b.head);
+                            return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+                        }
+                    });
+            try {
+                for (Run r : group) {
+                    RunReader reader = new RunReader(readers.size(), r);
+                    readers.add(reader);
+                    if (reader.advance())
+                        heads.add(reader);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        Tuple next() throws IOException {
+            RunReader reader = heads.poll();
+            if (reader == null)
+                return null;
+            Tuple t = reader.head;
+            if (reader.advance())
+                heads.add(reader);
+            return t;
+        }
+
+        void close() {
+            for (RunReader reader : readers) {
+                try {
+                    reader.dis.close();
+                } catch (IOException e) {
+                    // only a temporary file
+                }
+            }
+        }
+    }
+}
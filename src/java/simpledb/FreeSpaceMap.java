@@ -0,0 +1,208 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap records how many free slots each page of a {@link HeapFile}
+ * has, so that inserts go straight to a page with space instead of locking
+ * and reading every page of the file.
+ * <p>
+ * The map is stored next to the heap file, in a file with the same name and
+ * ".fsm" appended.  The file starts with a header: a magic number, the
+ * number of pages of the heap file in use and the number of pages allocated
+ * to it, which is larger when the file grows by extents (see
+ * {@link HeapFile#setExtentPages}).  The header is followed by one byte per
+ * page: 0 if the free space of the page is unknown, 1 if the page is full,
+ * and n + 1 if it has n free slots (counts above {@link #MAX_COUNT} are
+ * stored as MAX_COUNT).  Pages past the end of the map are unknown.  A map
+ * file older than its heap file, e.g. one left behind by a table
+ * regenerated with HeapFileEncoder, is ignored.
+ * <p>
+ * The map is only a hint.  An entry is refreshed in memory when a page is
+ * changed in the buffer pool, and again when an abort restores the page,
+ * and on disk when the page itself is written, so the map on disk describes the pages on disk, including those written by
+ * recovery.  A page the map wrongly reports free is found full by the insert
+ * and marked as such; a page wrongly reported full is only reused once it is
+ * written again.
+ */
+public class FreeSpaceMap {
+
+    /** Largest free slot count stored in the map */
+    public static final int MAX_COUNT = 254;
+
+    private static final byte UNKNOWN = 0;
+    private static final byte FULL = 1;
+
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+    // magic number, used pages and allocated pages
+    static final int HEADER_SIZE = 12;
+
+    private final File heapFile;
+    private final File file;
+    private FileChannel channel; // opened on first write
+    private byte[] entries;      // null until loaded
+    private int first;           // no page before it is known to have space
+    private int usedPages = -1;      // from the header, -1 if unknown
+    private int allocatedPages = -1; // from the header, -1 if unknown
+    private boolean written;     // the map file matches the map in memory
+
+    /**
+     * @param heapFile the file of the heap file the map belongs to
+     */
+    public FreeSpaceMap(File heapFile) {
+        this.heapFile = heapFile;
+        this.file = new File(heapFile.getPath() + ".fsm");
+    }
+
+    /** @return the file the map is stored in */
+    public File getFile() {
+        return file;
+    }
+
+    private void load() {
+        if (entries != null)
+            return;
+        entries = new byte[0];
+        if (!file.exists() || file.lastModified() < heapFile.lastModified())
+            return;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC)
+                return;
+            int used = raf.readInt();
+            int allocated = raf.readInt();
+            byte[] read = new byte[(int) raf.length() - HEADER_SIZE];
+            raf.readFully(read);
+            entries = read;
+            usedPages = used;
+            allocatedPages = allocated;
+        } catch (IOException e) {
+            // the map is only a hint, start over
+            entries = new byte[0];
+        }
+    }
+
+    private void set(int page, int freeSlots) {
+        if (page >= entries.length)
+            entries = Arrays.copyOf(entries, Math.max(page + 1, 2 * entries.length));
+        entries[page] = encode(freeSlots);
+        if (freeSlots != 0 && page < first)
+            first = page;
+    }
+
+    private static byte encode(int freeSlots) {
+        if (freeSlots < 0)
+            return UNKNOWN;
+        return (byte) (Math.min(freeSlots, MAX_COUNT) + 1);
+    }
+
+    /**
+     * Return the first page from the specified one on that may have a free
+     * slot: a page with free slots or whose free space is unknown.
+     * @param from the first page to consider
+     * @param numPages the number of pages of the heap file
+     * @return the page number, or -1 if every page is known to be full
+     */
+    public synchronized int findPage(int from, int numPages) {
+        load();
+        int i = Math.max(from, first);
+        while (i < numPages && i < entries.length && entries[i] == FULL)
+            i++;
+        if (from <= first)
+            first = i;
+        return i < numPages ? i : -1;
+    }
+
+    /**
+     * Return the number of free slots the map records for a page.
+     * @return the count, or -1 if it is unknown
+     */
+    public synchronized int getFreeSlots(int page) {
+        load();
+        if (page >= entries.length || entries[page] == UNKNOWN)
+            return -1;
+        return (entries[page] & 0xff) - 1;
+    }
+
+    /**
+     * Record the number of free slots of a page changed in memory.
+     * @param freeSlots the count, or -1 if it is unknown
+     */
+    public synchronized void update(int page, int freeSlots) {
+        load();
+        set(page, freeSlots);
+    }
+
+    /**
+     * Record the number of free slots of a page written to disk, in memory
+     * and in the file of the map.  The map file is not forced.
+     * @param freeSlots the count, or -1 if it is unknown
+     */
+    public synchronized void write(int page, int freeSlots) throws IOException {
+        load();
+        set(page, freeSlots);
+        if (sync())
+            write(ByteBuffer.wrap(entries, page, 1), HEADER_SIZE + page);
+    }
+
+    /**
+     * @return the number of pages in use recorded in the header, or -1 if
+     * it is unknown
+     */
+    public synchronized int getUsedPages() {
+        load();
+        return usedPages;
+    }
+
+    /**
+     * @return the number of pages allocated to the heap file recorded in the
+     * header, or -1 if it is unknown
+     */
+    public synchronized int getAllocatedPages() {
+        load();
+        return allocatedPages;
+    }
+
+    /**
+     * Record the number of used and allocated pages of the heap file in the
+     * header of the map file.  The map file is not forced.
+     */
+    public synchronized void writePageCounts(int used, int allocated) throws IOException {
+        load();
+        usedPages = used;
+        allocatedPages = allocated;
+        if (sync())
+            write(header(), 0);
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.putInt(MAGIC).putInt(usedPages).putInt(allocatedPages);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Open the map file, and the first time, replace its contents with the
+     * map in memory, which may have started over from an ignored file.
+     * @return true if later changes still have to be written
+     */
+    private boolean sync() throws IOException {
+        if (channel == null || !channel.isOpen())
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        if (written)
+            return true;
+        channel.truncate(0);
+        write(header(), 0);
+        write(ByteBuffer.wrap(entries), HEADER_SIZE);
+        written = true;
+        return false;
+    }
+
+    private void write(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining())
+            pos += channel.write(buf, pos);
+    }
+}
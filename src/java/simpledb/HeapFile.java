@@ -2,6 +2,9 @@ package simpledb;
 
 import java.io.*;
 import java.lang.annotation.IncompleteAnnotationException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.io.File;
 
@@ -12,6 +15,28 @@ import java.io.File;
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
  * 
+ * <p>
+ * Pages are read and written with positional I/O on a single FileChannel
+ * that stays open for the lifetime of the HeapFile, so concurrent readers
+ * do not open the file or share a seek pointer.  The number of pages is
+ * cached and kept up to date by the pages this HeapFile appends.
+ * <p>
+ * When inserts run out of space, the file grows by an extent of several
+ * pages at once (see {@link #setExtentPages}), which are written as zeroes
+ * so that the file system allocates them together.  The pages past the last
+ * one in use are allocated but unused: they are not counted by numPages()
+ * and are handed out one at a time by later inserts.  The numbers of used
+ * and allocated pages are kept in the header of the free space map.
+ * <p>
+ * Optionally, scans read the pages that are not in the buffer pool from a
+ * read-only memory mapping of the file and decode their tuples in place,
+ * instead of reading each page into the buffer pool.  Scans still lock every
+ * page and use the buffer pool copy of resident pages, and all writes go
+ * through the buffer pool.  See {@link #setMappedScans}.
+ * <p>
+ * A {@link FreeSpaceMap} stored next to the file records the free slots of
+ * each page, so that inserts only lock pages that have space.
+ * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
@@ -19,6 +44,16 @@ public class HeapFile implements DbFile {
 
     private final File hf_file;
     private final TupleDesc hf_TupleDesc;
+    private FileChannel hf_channel;//opened on first use, protected by this
+    private volatile int hf_numPages=-1;//cached number of pages in use, -1 until known
+    private int hf_allocated;//number of pages in the file, protected by this
+    private volatile int hf_extentPages;//pages added at once when inserts need a new page
+    /** Default number of pages a HeapFile grows by when inserts need a new page */
+    public static final int DEFAULT_EXTENT_PAGES=16;
+    private volatile boolean hf_mapped;//scans read non-resident pages from a mapping
+    private static final int MAP_CHUNK_PAGES=4096;//pages per mapped region
+    private final HashMap<Integer,MappedByteBuffer> hf_chunks=new HashMap<>();//protected by this
+    private final FreeSpaceMap hf_fsm;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -30,6 +65,44 @@ public class HeapFile implements DbFile {
         // some code goes here
         hf_file=f;
         hf_TupleDesc=td;
+        hf_mapped=Boolean.getBoolean(Database.MAPPED_SCANS_PROPERTY);
+        hf_fsm=new FreeSpaceMap(f);
+        hf_extentPages=Integer.getInteger(Database.HEAP_FILE_EXTENT_PROPERTY,DEFAULT_EXTENT_PAGES);
+    }
+
+    /**
+     * Set the number of pages the file grows by when an insert finds no page
+     * with space; 1 grows the file one page at a time.
+     */
+    public void setExtentPages(int pages) {
+        if(pages<=0) throw new IllegalArgumentException("extent must have at least one page");
+        hf_extentPages=pages;
+    }
+
+    public int getExtentPages() {
+        return hf_extentPages;
+    }
+
+    /**
+     * Returns the free space map of this HeapFile.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return hf_fsm;
+    }
+
+    /**
+     * Choose whether scans of this file read the pages that are not in the
+     * buffer pool from a memory mapping of the file, decoding tuples in place,
+     * or read them into the buffer pool.  Mapped scans leave the buffer pool
+     * to the pages that are updated, and let the OS page cache hold tables
+     * larger than the buffer pool.
+     */
+    public void setMappedScans(boolean mapped) {
+        hf_mapped=mapped;
+    }
+
+    public boolean isMappedScans() {
+        return hf_mapped;
     }
 
     /**
@@ -67,6 +140,17 @@ public class HeapFile implements DbFile {
         return hf_TupleDesc;
     }
 
+    /**
+     * Returns the channel of the file, opening it on first use.  A channel
+     * closed by an interrupted read or write is opened again.
+     */
+    private synchronized FileChannel channel() throws IOException {
+        if(hf_channel==null||!hf_channel.isOpen()){
+            hf_channel=new RandomAccessFile(hf_file,"rw").getChannel();
+        }
+        return hf_channel;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
@@ -74,10 +158,14 @@ public class HeapFile implements DbFile {
         Page ret_page=null;
         byte[] page_data=new byte[BufferPool.getPageSize()];
 
-        try(RandomAccessFile raf=new RandomAccessFile(getFile(),"r")){
-            int pos=pid.getPageNumber()*BufferPool.getPageSize();
-            raf.seek(pos);
-            raf.read(page_data,0,page_data.length);
+        try{
+            long pos=(long)pid.getPageNumber()*BufferPool.getPageSize();
+            ByteBuffer buf=ByteBuffer.wrap(page_data);
+            FileChannel channel=channel();
+            // a page past the end of the file reads as zeroes
+            while(buf.hasRemaining()){
+                if(channel.read(buf,pos+buf.position())<0) break;
+            }
             ret_page=new HeapPage((HeapPageId) pid,page_data);
         }
         catch(IOException e){
@@ -91,20 +179,171 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         int page_number=page.getId().getPageNumber();
-        if(page_number>numPages()||page_number<0) throw new IndexOutOfBoundsException();
+        if(page_number<0) throw new IndexOutOfBoundsException();
+        // pages that are allocated but unused may be written, e.g. by recovery
+        if(page_number>cachedNumPages()&&page_number>allocatedPages()) throw new IndexOutOfBoundsException();
+
+        writePageData(page_number,page.getPageData());
+        if(page instanceof HeapPage){
+            hf_fsm.write(page_number,((HeapPage)page).getNumEmptySlots());
+        }
+    }
 
-        RandomAccessFile raf=new RandomAccessFile(hf_file,"rw");
-        raf.seek(page_number*BufferPool.getPageSize());
-        raf.write(page.getPageData());
-        raf.close();
+    /**
+     * Helper function of writePage and insertTuple: write the data of a page
+     * at its position, and count the page if it extends the file.
+     */
+    private void writePageData(int page_number,byte[] data) throws IOException {
+        long pos=(long)page_number*BufferPool.getPageSize();
+        ByteBuffer buf=ByteBuffer.wrap(data);
+        FileChannel channel=channel();
+        while(buf.hasRemaining()){
+            pos+=channel.write(buf,pos);
+        }
+        synchronized(this){
+            boolean changed=false;
+            if(page_number>=hf_allocated){
+                hf_allocated=page_number+1;
+                changed=true;
+            }
+            if(page_number>=hf_numPages){
+                hf_numPages=page_number+1;
+                changed=true;
+            }
+            if(changed) hf_fsm.writePageCounts(hf_numPages,hf_allocated);
+        }
     }
 
     /**
      * Returns the number of pages in this HeapFile.
+     * The cached count is checked against the size of the open file, so
+     * that pages appended to the file by other means are counted too.
      */
-    public int numPages() {
+    public synchronized int numPages() {
         // some code goes here
-        return (int)hf_file.length()/BufferPool.getPageSize();
+        try{
+            int on_disk=(int)(channel().size()/BufferPool.getPageSize());
+            if(hf_numPages<0){
+                initPageCounts(on_disk);
+            }
+            else if(on_disk>hf_allocated){//appended by other means
+                hf_numPages=on_disk;
+                hf_allocated=on_disk;
+            }
+            else if(on_disk<hf_allocated){//truncated by other means
+                hf_numPages=Math.min(hf_numPages,on_disk);
+                hf_allocated=on_disk;
+            }
+            return hf_numPages;
+        }
+        catch(IOException e){
+            e.printStackTrace();
+            return (int)hf_file.length()/BufferPool.getPageSize();
+        }
+    }
+
+    /**
+     * Helper function of numPages
+     * Take the numbers of used and allocated pages from the header of the
+     * free space map.  Every page of the file is in use if the header is
+     * missing or the file grew past the pages it allocated; the unused pages
+     * are checked to be empty in case the header was not written out.
+     */
+    private void initPageCounts(int on_disk) throws IOException {
+        int used=hf_fsm.getUsedPages();
+        int allocated=hf_fsm.getAllocatedPages();
+        if(used<0||allocated<0||on_disk>allocated) used=on_disk;
+        used=Math.min(used,on_disk);
+        int page_size=BufferPool.getPageSize();
+        ByteBuffer buf=ByteBuffer.allocate(page_size);
+        for(int i=on_disk-1;i>=used;i--){
+            buf.clear();
+            while(buf.hasRemaining()){
+                if(channel().read(buf,(long)i*page_size+buf.position())<0) break;
+            }
+            if(!isZero(buf.array())){
+                used=i+1;
+                break;
+            }
+        }
+        hf_numPages=used;
+        hf_allocated=on_disk;
+    }
+
+    private static boolean isZero(byte[] data) {
+        for(byte b:data){
+            if(b!=0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Helper function of writePage: the number of pages in the file,
+     * including the allocated but unused ones.
+     */
+    private synchronized int allocatedPages() {
+        numPages();
+        return hf_allocated;
+    }
+
+    /**
+     * Helper function of insertTuple and HeapFileIterator: the cached
+     * number of pages, without asking the file system.
+     */
+    private int cachedNumPages() {
+        int num_pages=hf_numPages;
+        return num_pages>=0?num_pages:numPages();
+    }
+
+    /**
+     * Helper function of HeapFileIterator: a read-only view of the data of a
+     * page in a memory mapping of the file.  The file is mapped in regions of
+     * MAP_CHUNK_PAGES pages; a region that ends before the page, because the
+     * file grew since it was mapped, is mapped again.
+     * @return the page data, or null if the page is not in the file
+     */
+    private synchronized ByteBuffer mappedPage(int page_number) throws IOException {
+        int page_size=BufferPool.getPageSize();
+        int chunk=page_number/MAP_CHUNK_PAGES;
+        int offset=(page_number%MAP_CHUNK_PAGES)*page_size;
+        MappedByteBuffer mapped=hf_chunks.get(chunk);
+        if(mapped==null||mapped.capacity()<offset+page_size){
+            long start=(long)chunk*MAP_CHUNK_PAGES*page_size;
+            long size=Math.min((long)MAP_CHUNK_PAGES*page_size,channel().size()-start);
+            if(size<offset+page_size) return null;
+            mapped=channel().map(FileChannel.MapMode.READ_ONLY,start,size);
+            hf_chunks.put(chunk,mapped);
+        }
+        ByteBuffer page=mapped.duplicate();
+        page.position(offset);
+        page.limit(offset+page_size);
+        return page.slice();
+    }
+
+    /**
+     * Helper function of insertTuple: take the next allocated page into use,
+     * growing the file by an extent if there is none
+     * @return the number of the new page
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        int page_number=numPages();
+        if(page_number>=hf_allocated){
+            // allocate a whole extent; the pages after the new one stay
+            // allocated but unused until later inserts need them
+            int page_size=BufferPool.getPageSize();
+            ByteBuffer zeros=ByteBuffer.allocate(hf_extentPages*page_size);
+            long pos=(long)page_number*page_size;
+            FileChannel channel=channel();
+            while(zeros.hasRemaining()){
+                pos+=channel.write(zeros,pos);
+            }
+            hf_allocated=page_number+hf_extentPages;
+        }
+        // an allocated page holds zeroes, which is an empty page
+        hf_numPages=page_number+1;
+        hf_fsm.writePageCounts(hf_numPages,hf_allocated);
+        hf_fsm.write(page_number,-1);
+        return page_number;
     }
 
     // see DbFile.java for javadocs
@@ -113,22 +352,38 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         ArrayList<Page> ret_arraylist=new ArrayList<>();
-        for(int i=0;i<numPages();i++){
-            HeapPage now_Page=(HeapPage)Database.getBufferPool().getPage(tid,new HeapPageId(getId(),i),Permissions.READ_WRITE);
-            if(now_Page.getNumEmptySlots()==0) continue;
+        BufferPool bufferpool=Database.getBufferPool();
+        int num_pages=cachedNumPages();
+        // only visit the pages the free space map does not know to be full
+        for(int i=hf_fsm.findPage(0,num_pages);i>=0;i=hf_fsm.findPage(i+1,num_pages)){
+            HeapPageId pid=new HeapPageId(getId(),i);
+            // a shared lock is enough to see whether the page has space; only
+            // the page that receives the tuple is upgraded
+            HeapPage now_Page=(HeapPage)bufferpool.getPage(tid,pid,Permissions.READ_ONLY);
+            if(now_Page.getNumEmptySlots()==0){
+                // the map was out of date
+                hf_fsm.update(i,0);
+                continue;
+            }
+            now_Page=(HeapPage)bufferpool.getPage(tid,pid,Permissions.READ_WRITE);
+            if(now_Page.getNumEmptySlots()==0){
+                // filled by the transaction we waited for during the upgrade
+                hf_fsm.update(i,0);
+                continue;
+            }
            // System.out.println(now_Page.getNumEmptySlots());
             now_Page.insertTuple(t);
+            hf_fsm.update(i,now_Page.getNumEmptySlots());
             ret_arraylist.add(now_Page);
             return ret_arraylist;
         }
         //if no pages are free
         ret_arraylist.clear();
         //System.out.println("has been called");
-        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(hf_file,true));
-        bos.write(HeapPage.createEmptyPageData());
-        bos.close();
-        HeapPage now_Page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(),numPages()-1),Permissions.READ_WRITE);
+        int new_page=appendEmptyPage();
+        HeapPage now_Page = (HeapPage) bufferpool.getPage(tid, new HeapPageId(getId(),new_page),Permissions.READ_WRITE);
         now_Page.insertTuple(t);
+        hf_fsm.update(new_page,now_Page.getNumEmptySlots());
         ret_arraylist.add(now_Page);
         return ret_arraylist;
     }
@@ -141,6 +396,7 @@ public class HeapFile implements DbFile {
         ArrayList<Page> ret_arraylist=new ArrayList<>();
         HeapPage now_Page=(HeapPage)Database.getBufferPool().getPage(tid,t.getRecordId().getPageId(),Permissions.READ_WRITE);
         now_Page.deleteTuple(t);//Exception will be throw out in this func
+        hf_fsm.update(now_Page.getId().getPageNumber(),now_Page.getNumEmptySlots());
         ret_arraylist.add(now_Page);
         return ret_arraylist;
     }
@@ -161,6 +417,7 @@ public class HeapFile implements DbFile {
         private final TransactionId HFI_tid;
         private Iterator<Tuple> it;
         private int now_Page;
+        private HeapPageId pinned_pid;
 
         public HeapFileIterator(HeapFile file,TransactionId tid){
             this.HFI_heapfile=file;
@@ -175,27 +432,62 @@ public class HeapFile implements DbFile {
         }
         private Iterator<Tuple> getPageTuples(int pageNumber)
                 throws TransactionAbortedException,DbException{
-            if(pageNumber>=0 && pageNumber<HFI_heapfile.numPages()){
+            if(pageNumber>=0 && pageNumber<HFI_heapfile.cachedNumPages()){
                 HeapPageId pid=new HeapPageId(HFI_heapfile.getId(),pageNumber);
-                HeapPage page=(HeapPage) Database.getBufferPool().getPage(HFI_tid,pid,Permissions.READ_ONLY);
+                // keep the page we are reading pinned so it cannot be evicted under us
+                unpinCurrentPage();
+                if(HFI_heapfile.hf_mapped){
+                    Iterator<Tuple> mapped=getMappedPageTuples(pid);
+                    if(mapped!=null) return mapped;
+                }
+                HeapPage page=(HeapPage) Database.getBufferPool().pinPage(HFI_tid,pid,Permissions.READ_ONLY);
+                pinned_pid=pid;
                 return page.iterator();
             }
             throw new DbException("something bad happen");
         }
 
+        /**
+         * Helper function of getPageTuples in mapped mode
+         * Lock the page, and decode its tuples from the mapping of the file
+         * unless it is in the buffer pool, whose copy may be newer.
+         * @return the tuples, or null to read the page through the buffer pool
+         */
+        private Iterator<Tuple> getMappedPageTuples(HeapPageId pid)
+                throws TransactionAbortedException,DbException{
+            HeapPage page=(HeapPage) Database.getBufferPool().pinPageIfResident(HFI_tid,pid,Permissions.READ_ONLY);
+            if(page!=null){
+                pinned_pid=pid;
+                return page.iterator();
+            }
+            try{
+                ByteBuffer data=HFI_heapfile.mappedPage(pid.getPageNumber());
+                if(data!=null) return HeapPage.iterator(pid,HFI_heapfile.getTupleDesc(),data);
+            }
+            catch(IOException e){
+                // fall back to reading the page into the buffer pool
+            }
+            return null;
+        }
+
         @Override
         public boolean hasNext()
                 throws DbException, TransactionAbortedException{
             if(it==null) return false;
-            if(it.hasNext()) return true;
-            else{//比如一共有7页，now_page=0~5的时候可以继续读下一页
-                if(now_Page<=HFI_heapfile.numPages()-2){
+            //比如一共有7页，now_page=0~5的时候可以继续读下一页
+            while(!it.hasNext()){
+                // only ask the file system once the cached count runs out
+                if(now_Page<=HFI_heapfile.cachedNumPages()-2||now_Page<=HFI_heapfile.numPages()-2){
                     now_Page++;
                     it=getPageTuples(now_Page);
-                    return it.hasNext();
                 }
-                return false;
+                else{
+                    // no page left: release the last one now, a caller may never close us
+                    unpinCurrentPage();
+                    return false;
+                }
             }
+            return true;
         }
 
         @Override
@@ -218,9 +510,17 @@ public class HeapFile implements DbFile {
             open();
         }
 
+        private void unpinCurrentPage(){
+            if(pinned_pid!=null){
+                Database.getBufferPool().unpinPage(pinned_pid);
+                pinned_pid=null;
+            }
+        }
+
         @Override
         public void close() {
             it=null;
+            unpinCurrentPage();
         }
     }
 }
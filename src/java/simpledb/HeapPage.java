@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -19,8 +20,15 @@ public class HeapPage implements Page {
     final Tuple tuples[];
     final int numSlots;
 
+    // the data the page was created from; never changed, so that it can be
+    // shared with the before image.  The tuples of the slots that were not
+    // changed since are decoded from it when they are first used
+    private final byte[] data;
+    // a slot was changed since the page was created from data
+    private boolean modified;
+
+    // null if the page was not changed since the before image
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
 
     private TransactionId dirty_id;
     private boolean dirty;
@@ -36,6 +44,12 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * <p>
+     * Only the header is read when the page is created.  The page keeps the
+     * data, which the caller must not change afterwards, and decodes the
+     * tuple of a slot when it is first used; the fields of a tuple are in
+     * turn decoded when they are first read (see {@link Tuple#getInt}).
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -44,24 +58,13 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < BufferPool.getPageSize())
+            throw new EOFException("page data is too short");
+        this.data = data;
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        header = Arrays.copyOf(data, getHeaderSize());
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -88,9 +91,10 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
-            synchronized(oldDataLock)
+            synchronized(this)
             {
-                oldDataRef = oldData;
+                // no before image: the page was not changed since
+                oldDataRef = oldData != null ? oldData : currentData();
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -101,11 +105,28 @@ public class HeapPage implements Page {
         return null;
     }
     
-    public void setBeforeImage() {
-        synchronized(oldDataLock)
-        {
-        oldData = getPageData().clone();
-        }
+    public synchronized void setBeforeImage() {
+        // the current content is the before image until the page is changed
+        oldData = null;
+    }
+
+    /**
+     * Helper function of insertTuple and deleteTuple
+     * Copy the current content of the page to the before image, unless the
+     * page was already changed since the before image was last set.
+     */
+    private void beforeWrite() {
+        if (oldData == null)
+            oldData = currentData();
+    }
+
+    /**
+     * Helper function of getBeforeImage and beforeWrite
+     * The current content of the page; the data the page was created from
+     * is shared as long as no slot was changed.
+     */
+    private byte[] currentData() {
+        return modified ? getPageData() : data;
     }
 
     /**
@@ -117,36 +138,25 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Return the tuple of a used slot, decoding it from the data of the page
+     * the first time.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    private synchronized Tuple tuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null && isSlotUsed(slotId)) {
+            t = decode(slotId);
+            tuples[slotId] = t;
         }
+        return t;
+    }
 
+    /**
+     * Build the tuple stored in a slot of the data of the page.  Its fields
+     * are only decoded when they are read.
+     */
+    private Tuple decode(int slotId) {
+        Tuple t = new Tuple(td, data, header.length + slotId * td.getSize());
+        t.setRecordId(new RecordId(pid, slotId));
         return t;
     }
 
@@ -161,7 +171,9 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
+        if (!modified)
+            return data.clone();
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -192,6 +204,16 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // a slot that was not changed is copied without decoding it
+            if (tuples[i] == null) {
+                try {
+                    dos.write(data, header.length + i * td.getSize(), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -243,15 +265,17 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         int t_tupno=t.getRecordId().getTupleNumber();
         if(!isSlotUsed(t_tupno)) throw new DbException("the tuple slot is already empty");
-        if(tuples[t_tupno]==null) throw new DbException("this tuple is not on this page");
+        if(tuple(t_tupno)==null) throw new DbException("this tuple is not on this page");
         if(!tuples[t_tupno].equals(t)) throw new DbException("this tuple is not on this page");
+        beforeWrite();
         markSlotUsed(t_tupno,false);
         tuples[t_tupno]=null;
+        modified=true;
     }
 
     /**
@@ -261,16 +285,18 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if(!td.equals(t.getTupleDesc())) throw new DbException("tupledesc is dismatch");
         if(getNumEmptySlots()==0) throw new DbException("the page is fool");
         for(int i=0;i<numSlots;i++){
             if(!isSlotUsed(i)){
+                beforeWrite();
                 t.setRecordId(new RecordId(pid,i));
                 markSlotUsed(i,true);
                 tuples[i]=t;
+                modified=true;
                 return;
             }
         }
@@ -322,6 +348,15 @@ public class HeapPage implements Page {
         return temp==1;
     }
 
+    /**
+     * Returns the tuple stored in a slot of this page, or null if the slot
+     * is empty or out of range.
+     */
+    public Tuple getTuple(int i) {
+        if(i<0||i>=numSlots) return null;
+        return tuple(i);
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -338,19 +373,102 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Returns an iterator over the tuples of a page that decodes them in
+     * place from the page data, e.g. a page of a memory-mapped file, without
+     * copying the data or building a HeapPage.  A tuple is decoded when
+     * next() returns it.  The data must not change while iterating.
+     *
+     * @param pid the id of the page, for the RecordIds of its tuples
+     * @param td the TupleDesc of the table of the page
+     * @param data the page data, from its position to its limit
+     */
+    public static Iterator<Tuple> iterator(final HeapPageId pid, final TupleDesc td, ByteBuffer data) {
+        final ByteBuffer page=data.slice();
+        final int tupleSize=td.getSize();
+        final int numSlots=(BufferPool.getPageSize()*8)/(tupleSize*8+1);
+        final int headerSize=(numSlots+7)/8;
+        return new Iterator<Tuple>() {
+            private int slot=advance(0);
+
+            // the first used slot from i on, numSlots if there is none
+            private int advance(int i){
+                while(i<numSlots&&((page.get(i/8)>>(i%8))&1)==0) i++;
+                return i;
+            }
+
+            public boolean hasNext() {
+                return slot<numSlots;
+            }
+
+            public Tuple next() {
+                if(slot>=numSlots) throw new NoSuchElementException();
+                Tuple t=new Tuple(td);
+                t.setRecordId(new RecordId(pid,slot));
+                page.position(headerSize+slot*tupleSize);
+                for(int j=0;j<td.numFields();j++){
+                    t.setField(j,td.getFieldType(j).parse(page));
+                }
+                slot=advance(slot+1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        ArrayList<Tuple> Tuple_list=new ArrayList<>();
-        for(int i=0;i<numSlots;i++){
-            if(isSlotUsed(i)){
-                Tuple_list.add(tuples[i]);
-            }
+        // the slots in use when the iterator is created, so that tuples
+        // inserted while iterating are not returned; the tuples that were
+        // not decoded yet are decoded as the iterator reaches them
+        final byte[] used;
+        final Tuple[] decoded;
+        synchronized(this){
+            used=header.clone();
+            decoded=tuples.clone();
         }
-        return Tuple_list.iterator();
+        return new Iterator<Tuple>() {
+            private int slot=advance(0);
+
+            // the first slot from i on that was in use, numSlots if none
+            private int advance(int i){
+                while(i<numSlots&&((used[i/8]>>(i%8))&1)==0) i++;
+                return i;
+            }
+
+            public boolean hasNext() {
+                return slot<numSlots;
+            }
+
+            public Tuple next() {
+                if(slot>=numSlots) throw new NoSuchElementException();
+                Tuple t=decoded[slot];
+                if(t==null) t=tuple(slot);
+                if(t==null) t=decodeDeleted(slot);
+                slot=advance(slot+1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Helper function of iterator
+     * The tuple of a slot deleted after the iterator was created.  It was
+     * not decoded before, so it is still the one in the data of the page.
+     */
+    private synchronized Tuple decodeDeleted(int slotId) {
+        return decode(slotId);
     }
 
 }
@@ -40,8 +40,9 @@ public class HeapPageId implements PageId {
      */
     public int hashCode() {
         // some code goes here
-        String hash = "" + hp_tableID + hp_pgNo;
-        return hash.hashCode();
+        // mixing the two ints directly avoids both the string allocation and
+        // collisions such as (1, 23) vs (12, 3) of the concatenated string
+        return 31*hp_tableID+hp_pgNo;
     }
 
     /**
@@ -53,8 +54,10 @@ public class HeapPageId implements PageId {
      */
     public boolean equals(Object o) {
         // some code goes here
-        if(o instanceof PageId){
-            return this.hp_tableID==((PageId) o).getTableId()&&this.hp_pgNo==((PageId) o).getPageNumber();
+        // only another HeapPageId can be equal, so that equals stays symmetric
+        // with BTreePageId (which also compares the page category)
+        if(o instanceof HeapPageId){
+            return this.hp_tableID==((HeapPageId) o).hp_tableID&&this.hp_pgNo==((HeapPageId) o).hp_pgNo;
         }
         return false;
     }
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRUKEvictionPolicy implements the LRU-K page replacement algorithm
+ * (O'Neil, O'Neil and Weikum).  For every page it remembers the times of the
+ * last K accesses and evicts the page whose K-th most recent access lies
+ * furthest in the past.  Pages that have been accessed fewer than K times
+ * have an infinite backward K-distance and are evicted first, oldest access
+ * first.
+ * <p>
+ * A sequential scan touches each page once, so scanned pages never compete
+ * with pages that have been accessed at least K times (such as the inner
+ * pages of a B+ tree), which makes the policy resistant to scans.
+ * <p>
+ * The access history of recently evicted pages is retained for a bounded
+ * number of pages, so that a page that is re-read soon after being evicted
+ * is still recognised as hot.
+ */
+public class LRUKEvictionPolicy implements EvictionPolicy {
+
+    /** Default number of accesses tracked per page. */
+    public static final int DEFAULT_K = 2;
+
+    /** Default number of non-resident pages whose history is retained. */
+    public static final int DEFAULT_RETAINED_HISTORY = 1024;
+
+    private final int k;
+    private final HashMap<PageId, long[]> resident;
+    private final LinkedHashMap<PageId, long[]> retained;
+    private long clock;
+
+    public LRUKEvictionPolicy() {
+        this(DEFAULT_K, DEFAULT_RETAINED_HISTORY);
+    }
+
+    /**
+     * @param k the number of most recent accesses to track for every page
+     * @param retainedHistory the maximum number of evicted pages whose
+     *   access history is remembered
+     */
+    public LRUKEvictionPolicy(int k, final int retainedHistory) {
+        if (k < 1) throw new IllegalArgumentException("k must be positive");
+        this.k = k;
+        this.resident = new HashMap<PageId, long[]>();
+        this.retained = new LinkedHashMap<PageId, long[]>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> eldest) {
+                return size() > retainedHistory;
+            }
+        };
+        this.clock = 0;
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        long[] history = resident.get(pid);
+        if (history == null) {
+            history = retained.remove(pid);
+            if (history == null) {
+                // history[0] is the most recent access, 0 means "never"
+                history = new long[k];
+            }
+            resident.put(pid, history);
+        }
+        System.arraycopy(history, 0, history, 1, k - 1);
+        history[0] = ++clock;
+    }
+
+    public synchronized void recordRemoval(PageId pid) {
+        long[] history = resident.remove(pid);
+        if (history != null) {
+            retained.put(pid, history);
+        }
+    }
+
+    /**
+     * Returns the resident pages ordered by their backward K-distance,
+     * largest first.  The order is computed from a snapshot of the access
+     * history and is consumed from a heap, so finding the first acceptable
+     * victim costs O(n) plus O(log n) per rejected candidate.
+     */
+    public synchronized Iterator<PageId> evictionOrder() {
+        final PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>(Math.max(1, resident.size()));
+        for (Map.Entry<PageId, long[]> e : resident.entrySet()) {
+            long[] history = e.getValue();
+            heap.add(new Candidate(e.getKey(), history[k - 1], history[0]));
+        }
+        return new Iterator<PageId>() {
+            public boolean hasNext() {
+                return !heap.isEmpty();
+            }
+
+            public PageId next() {
+                if (heap.isEmpty()) throw new NoSuchElementException();
+                return heap.poll().pid;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+        final PageId pid;
+        final long kthAccess;
+        final long lastAccess;
+
+        Candidate(PageId pid, long kthAccess, long lastAccess) {
+            this.pid = pid;
+            this.kthAccess = kthAccess;
+            this.lastAccess = lastAccess;
+        }
+
+        public int compareTo(Candidate o) {
+            // an older K-th access means a larger backward K-distance; pages
+            // with fewer than K accesses have kthAccess == 0 and sort first
+            if (kthAccess != o.kthAccess) return kthAccess < o.kthAccess ? -1 : 1;
+            if (lastAccess != o.lastAccess) return lastAccess < o.lastAccess ? -1 : 1;
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager implements the page-level shared/exclusive locks used by the
+ * BufferPool to enforce strict two-phase locking.
+ * <p>
+ * Every page that is locked or waited for has a {@link PageLock} holding the
+ * set of granted locks and a FIFO queue of waiting requests, which is dropped
+ * once the page has neither.  A request that cannot be granted is appended
+ * to the queue and its thread waits on the monitor of that page only; when a
+ * lock on the page is released the queue is granted in order, as far as the
+ * granted modes are compatible, and only the waiters of that page are woken
+ * up.
+ * <p>
+ * A transaction holding a shared lock may upgrade it to an exclusive lock.
+ * Upgrade requests are queued ahead of all other waiters, since every other
+ * waiter has to wait for the upgrading transaction anyway.
+ * <p>
+ * Deadlocks are detected with a {@link WaitsForGraph}: a waiting transaction
+ * has an edge to every transaction that holds an incompatible lock on the
+ * page, or is queued ahead of it with an incompatible request.  The edges of
+ * the waiters of a page are recomputed whenever its holders or its queue
+ * change, so the graph has no edges to locks already released.  By default a
+ * transaction whose request closes a cycle is aborted right away.  When a
+ * {@link DeadlockDetector} is running the request path only maintains the
+ * graph, and the detector aborts a victim of every cycle it finds.
+ * <p>
+ * Alternatively one of the timestamp based prevention policies of
+ * {@link DeadlockPolicy} can be chosen, which order transactions by their
+ * TransactionId and never build the waits-for graph.
+ *
+ * @see BufferPool
+ */
+public class LockManager {
+
+    /** How the lock manager deals with deadlocks. */
+    public enum DeadlockPolicy {
+        /**
+         * let transactions wait and abort one transaction of every cycle in
+         * the waits-for graph, either on the request path or in a
+         * {@link DeadlockDetector}
+         */
+        DETECT,
+        /** a transaction may only wait for younger transactions, else it aborts */
+        WAIT_DIE,
+        /** a transaction aborts the younger transactions it has to wait for */
+        WOUND_WAIT,
+        /** a transaction that would have to wait aborts immediately */
+        NO_WAIT
+    }
+
+    /** A lock request that has been queued on a page. */
+    private static class LockRequest {
+        final TransactionId tid;
+        final Permissions perm;
+        final boolean upgrade;
+        final PageLock pageLock;
+        boolean granted;
+        // set when the deadlock detector chose this transaction as a victim
+        boolean aborted;
+
+        LockRequest(TransactionId tid, Permissions perm, boolean upgrade, PageLock pageLock) {
+            this.tid = tid;
+            this.perm = perm;
+            this.upgrade = upgrade;
+            this.pageLock = pageLock;
+            this.granted = false;
+            this.aborted = false;
+        }
+    }
+
+    /**
+     * The lock state of one page.  All fields are protected by the monitor
+     * of the PageLock object, which is also the condition waiters block on.
+     */
+    private class PageLock {
+        final PageId pid;
+        final HashMap<TransactionId, Permissions> holders = new HashMap<TransactionId, Permissions>();
+        final LinkedList<LockRequest> queue = new LinkedList<LockRequest>();
+        // set once the PageLock is dropped from pageLocks; a request that
+        // finds it set has to look the page up again
+        boolean removed;
+
+        PageLock(PageId pid) {
+            this.pid = pid;
+        }
+
+        /** @return true if tid already holds a lock at least as strong as perm */
+        boolean holds(TransactionId tid, Permissions perm) {
+            Permissions held = holders.get(tid);
+            if (held == null) return false;
+            return held == Permissions.READ_WRITE || perm == Permissions.READ_ONLY;
+        }
+
+        /** @return true if the lock held by holder conflicts with a request of tid for perm */
+        boolean conflicts(TransactionId tid, Permissions perm, TransactionId holder, Permissions held) {
+            if (holder.equals(tid)) return false;
+            return perm == Permissions.READ_WRITE || held == Permissions.READ_WRITE;
+        }
+
+        /** @return true if no other holder conflicts with a request of tid for perm */
+        boolean compatible(TransactionId tid, Permissions perm) {
+            for (Map.Entry<TransactionId, Permissions> e : holders.entrySet()) {
+                if (conflicts(tid, perm, e.getKey(), e.getValue())) return false;
+            }
+            return true;
+        }
+
+        void grant(TransactionId tid, Permissions perm) {
+            Permissions held = holders.get(tid);
+            if (held == null)
+                lockedPagesOf(tid).add(pid);
+            if (held != Permissions.READ_WRITE)
+                holders.put(tid, perm);
+        }
+
+        /** @return true if tid held a lock on this page */
+        boolean ungrant(TransactionId tid) {
+            if (holders.remove(tid) == null) return false;
+            Set<PageId> locked = lockedPages.get(tid);
+            if (locked != null) locked.remove(pid);
+            return true;
+        }
+
+        /**
+         * Grant waiting requests in FIFO order until the first one that is
+         * not compatible with the granted locks.
+         * @return true if any request was granted
+         */
+        boolean grantWaiters() {
+            boolean any = false;
+            Iterator<LockRequest> it = queue.iterator();
+            while (it.hasNext()) {
+                LockRequest req = it.next();
+                if (!compatible(req.tid, req.perm)) break;
+                grant(req.tid, req.perm);
+                req.granted = true;
+                it.remove();
+                // the waiter may not run before the detector does
+                graph.removeWaiter(req.tid);
+                any = true;
+            }
+            return any;
+        }
+
+        /**
+         * Called whenever the holders or the queue of the page change: grant
+         * the waiters that can go ahead, and bring the waits-for edges of the
+         * others up to date, so that the detector never finds a cycle through
+         * a transaction that no longer holds or waits for the page.
+         */
+        void holdersChanged() {
+            if (grantWaiters()) notifyAll();
+            refreshEdges();
+        }
+
+        /** Recompute the waits-for edges of the waiting requests. */
+        void refreshEdges() {
+            if (deadlockPolicy != DeadlockPolicy.DETECT) return;
+            for (LockRequest req : queue) {
+                if (!req.aborted) graph.setEdges(req.tid, blockers(req));
+            }
+        }
+
+        /** Drop this PageLock from pageLocks if nobody holds or waits for it. */
+        void removeIfUnused() {
+            if (holders.isEmpty() && queue.isEmpty()) {
+                removed = true;
+                pageLocks.remove(pid, this);
+            }
+        }
+
+        /** @return the transactions req has to wait for */
+        Set<TransactionId> blockers(LockRequest req) {
+            Set<TransactionId> ret = new HashSet<TransactionId>();
+            for (Map.Entry<TransactionId, Permissions> e : holders.entrySet()) {
+                if (conflicts(req.tid, req.perm, e.getKey(), e.getValue()))
+                    ret.add(e.getKey());
+            }
+            for (LockRequest other : queue) {
+                if (other == req) break;
+                if (conflicts(req.tid, req.perm, other.tid, other.perm))
+                    ret.add(other.tid);
+            }
+            return ret;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, PageLock> pageLocks;
+    // pages each transaction holds a lock on, so its locks can be released
+    // without looking at every page
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> lockedPages;
+    // the request each blocked transaction is waiting on
+    private final ConcurrentHashMap<TransactionId, LockRequest> waiting;
+    // has its own monitor, which is always taken after a PageLock monitor
+    private final WaitsForGraph graph;
+    private volatile DeadlockDetector detector;
+    private volatile DeadlockPolicy deadlockPolicy;
+    // transactions wounded by an older one under WOUND_WAIT
+    private final Set<TransactionId> wounded;
+    // number of transactions aborted by each deadlock policy
+    private final AtomicLong[] abortCounts;
+
+    public LockManager() {
+        pageLocks = new ConcurrentHashMap<PageId, PageLock>();
+        lockedPages = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+        waiting = new ConcurrentHashMap<TransactionId, LockRequest>();
+        graph = new WaitsForGraph();
+        detector = null;
+        deadlockPolicy = DeadlockPolicy.DETECT;
+        wounded = ConcurrentHashMap.newKeySet();
+        abortCounts = new AtomicLong[DeadlockPolicy.values().length];
+        for (int i = 0; i < abortCounts.length; i++)
+            abortCounts[i] = new AtomicLong(0);
+    }
+
+    /** @return the deadlock policy of this lock manager */
+    public DeadlockPolicy getDeadlockPolicy() {
+        return deadlockPolicy;
+    }
+
+    /**
+     * Change the deadlock policy.  Only requests that start waiting after
+     * the call are affected.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        deadlockPolicy = policy;
+    }
+
+    /** @return the number of transactions aborted by the specified policy */
+    public long getAbortCount(DeadlockPolicy policy) {
+        return abortCounts[policy.ordinal()].get();
+    }
+
+    private PageLock pageLock(PageId pid) {
+        PageLock pl = pageLocks.get(pid);
+        if (pl == null) {
+            PageLock created = new PageLock(pid);
+            pl = pageLocks.putIfAbsent(pid, created);
+            if (pl == null) pl = created;
+        }
+        return pl;
+    }
+
+    private Set<PageId> lockedPagesOf(TransactionId tid) {
+        Set<PageId> locked = lockedPages.get(tid);
+        if (locked == null) {
+            Set<PageId> created = ConcurrentHashMap.newKeySet();
+            locked = lockedPages.putIfAbsent(tid, created);
+            if (locked == null) locked = created;
+        }
+        return locked;
+    }
+
+    /**
+     * Acquire a lock on the specified page on behalf of the specified
+     * transaction, blocking until the lock is granted.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive lock
+     * @throws TransactionAbortedException if the deadlock policy aborts the
+     *   transaction, or the thread is interrupted while waiting
+     */
+    public void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        checkWounded(tid);
+        PageLock pl;
+        LockRequest req;
+        while (true) {
+            pl = pageLock(pid);
+            synchronized (pl) {
+                // released and dropped since we looked it up
+                if (pl.removed) continue;
+                if (pl.holds(tid, perm)) return;
+                boolean upgrade = pl.holders.containsKey(tid);
+                // FIFO: a new request may only bypass the queue if nobody waits,
+                // an upgrade only has to wait for the other holders
+                if (pl.compatible(tid, perm) && (upgrade || pl.queue.isEmpty())) {
+                    pl.grant(tid, perm);
+                    // waiters now also wait for our exclusive lock
+                    if (upgrade && !pl.queue.isEmpty()) {
+                        pl.notifyAll();
+                        pl.refreshEdges();
+                    }
+                    return;
+                }
+
+                req = new LockRequest(tid, perm, upgrade, pl);
+                if (upgrade) {
+                    int pos = 0;
+                    for (LockRequest other : pl.queue) {
+                        if (!other.upgrade) break;
+                        pos++;
+                    }
+                    pl.queue.add(pos, req);
+                    // the waiters behind us now also wait for us
+                    pl.refreshEdges();
+                    pl.notifyAll();
+                } else {
+                    pl.queue.add(req);
+                }
+                waiting.put(tid, req);
+                break;
+            }
+        }
+
+        ArrayList<TransactionId> toWound = new ArrayList<TransactionId>();
+        try {
+            while (true) {
+                synchronized (pl) {
+                    // a wounded transaction aborts even if its lock was
+                    // granted in the meantime
+                    checkWounded(tid);
+                    if (req.granted) return;
+                    if (req.aborted) {
+                        Debug.log(1, "LockManager: transaction %d chosen as deadlock victim", tid.getId());
+                        throw new TransactionAbortedException();
+                    }
+                    if (mustAbort(req, pl.blockers(req), toWound)) {
+                        Debug.log(1, "LockManager: %s aborts transaction %d", deadlockPolicy, tid.getId());
+                        abortCounts[deadlockPolicy.ordinal()].incrementAndGet();
+                        throw new TransactionAbortedException();
+                    }
+                    if (toWound.isEmpty()) {
+                        try {
+                            pl.wait();
+                        } catch (InterruptedException e) {
+                            throw new TransactionAbortedException();
+                        }
+                    }
+                }
+                // wound outside of our page's monitor, the victims may wait on
+                // other pages
+                for (TransactionId victim : toWound) abortWaiter(victim);
+                toWound.clear();
+            }
+        } finally {
+            synchronized (pl) {
+                waiting.remove(tid, req);
+                graph.removeWaiter(tid);
+                if (!req.granted) {
+                    // our request may have been blocking the ones behind it
+                    pl.queue.remove(req);
+                    pl.holdersChanged();
+                    pl.removeIfUnused();
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the deadlock policy to a request that has to wait.  Called with
+     * the monitor of the request's page held.
+     *
+     * @param req the waiting request
+     * @param blockers the transactions req waits for
+     * @param toWound collects younger transactions to abort under WOUND_WAIT
+     * @return true if the requesting transaction has to abort
+     */
+    private boolean mustAbort(LockRequest req, Set<TransactionId> blockers, List<TransactionId> toWound) {
+        TransactionId tid = req.tid;
+        switch (deadlockPolicy) {
+        case NO_WAIT:
+            return true;
+        case WAIT_DIE:
+            // an older transaction may wait for a younger one, never the other way
+            for (TransactionId t : blockers) {
+                if (t.getId() < tid.getId()) return true;
+            }
+            return false;
+        case WOUND_WAIT:
+            // an older transaction aborts the younger ones it waits for; a
+            // wounded transaction that is running aborts at its next access
+            // to the buffer pool
+            for (TransactionId t : blockers) {
+                if (t.getId() > tid.getId() && wounded.add(t))
+                    toWound.add(t);
+            }
+            return false;
+        default:
+            graph.setEdges(tid, blockers);
+            return !isDetectorRunning() && graph.findCycle(tid) != null;
+        }
+    }
+
+    /**
+     * Abort the specified transaction if it was wounded under WOUND_WAIT.
+     * Besides every lock request, the BufferPool calls this on every
+     * operation of a transaction, so that a running victim aborts at its
+     * next access even if it already holds the locks it needs; a waiting
+     * victim is woken up by the transaction that wounds it.  A wounded
+     * transaction that completes before its next access is not counted.
+     *
+     * @throws TransactionAbortedException if the transaction was wounded
+     */
+    public void checkWounded(TransactionId tid) throws TransactionAbortedException {
+        if (!wounded.contains(tid)) return;
+        Debug.log(1, "LockManager: wounded transaction %d aborts", tid.getId());
+        abortCounts[DeadlockPolicy.WOUND_WAIT.ordinal()].incrementAndGet();
+        throw new TransactionAbortedException();
+    }
+
+    /**
+     * Release the lock that the specified transaction holds on the specified
+     * page, and wake up the transactions waiting for that page.
+     *
+     * @return false if the transaction did not hold a lock on the page
+     */
+    public boolean releaseLock(TransactionId tid, PageId pid) {
+        PageLock pl = pageLocks.get(pid);
+        if (pl == null) return false;
+        synchronized (pl) {
+            if (!pl.ungrant(tid)) return false;
+            pl.holdersChanged();
+            pl.removeIfUnused();
+            return true;
+        }
+    }
+
+    /**
+     * Release all locks held by the specified transaction.
+     */
+    public void releaseAllLocks(TransactionId tid) {
+        wounded.remove(tid);
+        Set<PageId> locked = lockedPages.remove(tid);
+        if (locked == null) return;
+        for (PageId pid : locked) {
+            PageLock pl = pageLocks.get(pid);
+            if (pl == null) continue;
+            synchronized (pl) {
+                if (pl.holders.remove(tid) != null)
+                    pl.holdersChanged();
+                pl.removeIfUnused();
+            }
+        }
+    }
+
+    /** @return the pages the specified transaction holds a lock on */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> locked = lockedPages.get(tid);
+        if (locked == null) return Collections.emptySet();
+        return new HashSet<PageId>(locked);
+    }
+
+    /** @return true if the specified transaction holds any lock on the specified page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        return getLockMode(tid, pid) != null;
+    }
+
+    /**
+     * @return the mode of the lock the specified transaction holds on the
+     *   specified page, or null if it holds none
+     */
+    public Permissions getLockMode(TransactionId tid, PageId pid) {
+        PageLock pl = pageLocks.get(pid);
+        if (pl == null) return null;
+        synchronized (pl) {
+            return pl.holders.get(tid);
+        }
+    }
+
+    /** @return the number of pages that are locked or waited for */
+    public int numLockedPages() {
+        return pageLocks.size();
+    }
+
+    /** @return the waits-for graph of this lock manager */
+    public WaitsForGraph getWaitsForGraph() {
+        return graph;
+    }
+
+    /**
+     * Start a background deadlock detector.  While it runs, lock requests no
+     * longer search the waits-for graph themselves.
+     *
+     * @param interval time between two runs of the detector, in milliseconds
+     * @param policy how the detector chooses the transaction to abort
+     */
+    public synchronized void startDeadlockDetector(long interval, DeadlockDetector.VictimPolicy policy) {
+        stopDeadlockDetector();
+        detector = new DeadlockDetector(this, interval, policy);
+        detector.start();
+    }
+
+    /** Stop the background deadlock detector, if one is running. */
+    public synchronized void stopDeadlockDetector() {
+        if (detector != null) {
+            detector.shutdown();
+            detector = null;
+        }
+    }
+
+    private boolean isDetectorRunning() {
+        return detector != null;
+    }
+
+    /**
+     * Search the waits-for graph for cycles and abort one transaction on
+     * every cycle found.  Called by the {@link DeadlockDetector}.
+     *
+     * @param policy how to choose the transaction to abort
+     * @return the number of transactions aborted
+     */
+    public int resolveDeadlocks(DeadlockDetector.VictimPolicy policy) {
+        int aborted = 0;
+        HashSet<TransactionId> victims = new HashSet<TransactionId>();
+        for (TransactionId tid : graph.waiters()) {
+            if (victims.contains(tid)) continue;
+            List<TransactionId> cycle = graph.findCycle(tid);
+            if (cycle == null) continue;
+            TransactionId victim = chooseVictim(cycle, policy);
+            victims.add(victim);
+            // drop the victim's edges right away so that other cycles through
+            // it are not broken a second time
+            graph.removeWaiter(victim);
+            if (abortWaiter(victim)) {
+                abortCounts[DeadlockPolicy.DETECT.ordinal()].incrementAndGet();
+                aborted++;
+            }
+        }
+        return aborted;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle, DeadlockDetector.VictimPolicy policy) {
+        TransactionId victim = null;
+        int victimWork = 0;
+        for (TransactionId tid : cycle) {
+            int work = 0;
+            if (policy == DeadlockDetector.VictimPolicy.LEAST_WORK) {
+                Set<PageId> locked = lockedPages.get(tid);
+                work = locked == null ? 0 : locked.size();
+            }
+            // ties (and the YOUNGEST policy) go to the transaction started last
+            if (victim == null || work < victimWork
+                    || (work == victimWork && tid.getId() > victim.getId())) {
+                victim = tid;
+                victimWork = work;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Make the pending lock request of the specified transaction fail with
+     * a TransactionAbortedException.
+     * @return false if the transaction is no longer waiting
+     */
+    private boolean abortWaiter(TransactionId tid) {
+        LockRequest req = waiting.get(tid);
+        if (req == null) return false;
+        synchronized (req.pageLock) {
+            if (req.granted || req.aborted) return false;
+            req.aborted = true;
+            req.pageLock.notifyAll();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * LogCodec encodes the page ids and page images stored in log records.
+ * <p>
+ * Every kind of page id is registered with a numeric tag and a
+ * {@link PageType} that reads the id back and builds pages from their data,
+ * so the log refers to a page with a one byte tag and the fields of its id
+ * instead of class names, and decoding needs no reflection.  The kind of
+ * page follows from its id: a HeapPageId names a HeapPage, and the category
+ * of a BTreePageId names the kind of B+ tree page.
+ * <p>
+ * A page id is encoded as its tag followed by the integers of
+ * {@link PageId#serialize()}.
+ */
+public class LogCodec {
+
+    /** Tag of HeapPageId, for HeapPage */
+    public static final byte HEAP_PAGE = 1;
+    /** Tag of BTreePageId, for the pages of a B+ tree file */
+    public static final byte BTREE_PAGE = 2;
+
+    /** Decoder of the page ids and pages of one registered tag. */
+    public interface PageType {
+        /** Read the fields of a page id written after its tag. */
+        PageId readId(ByteBuffer buf);
+
+        /** Build the page with the specified id from its data. */
+        Page readPage(PageId pid, byte[] data) throws IOException;
+    }
+
+    private static final PageType[] types = new PageType[Byte.MAX_VALUE + 1];
+    private static final Class<?>[] idClasses = new Class<?>[Byte.MAX_VALUE + 1];
+    private static final HashMap<Class<?>, Byte> tags = new HashMap<Class<?>, Byte>();
+
+    static {
+        register(HEAP_PAGE, HeapPageId.class, new PageType() {
+            public PageId readId(ByteBuffer buf) {
+                int tableId = buf.getInt();
+                return new HeapPageId(tableId, buf.getInt());
+            }
+
+            public Page readPage(PageId pid, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        });
+        register(BTREE_PAGE, BTreePageId.class, new PageType() {
+            public PageId readId(ByteBuffer buf) {
+                int tableId = buf.getInt();
+                int pgNo = buf.getInt();
+                return new BTreePageId(tableId, pgNo, buf.getInt());
+            }
+
+            public Page readPage(PageId pid, byte[] data) throws IOException {
+                BTreePageId id = (BTreePageId) pid;
+                switch (id.pgcateg()) {
+                case BTreePageId.ROOT_PTR:
+                    return new BTreeRootPtrPage(id, data);
+                case BTreePageId.HEADER:
+                    return new BTreeHeaderPage(id, data);
+                case BTreePageId.INTERNAL:
+                    return new BTreeInternalPage(id, data, keyField(id));
+                case BTreePageId.LEAF:
+                    return new BTreeLeafPage(id, data, keyField(id));
+                default:
+                    throw new IOException("unknown B+ tree page category " + id.pgcateg());
+                }
+            }
+        });
+    }
+
+    private static int keyField(BTreePageId id) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+    }
+
+    /**
+     * Register the decoder of a kind of page id.
+     * @param tag the tag written in the log, between 1 and 127
+     * @param idClass the class of the page ids
+     * @param type reads the ids and builds their pages
+     * @throws IllegalArgumentException if the tag is out of range or taken
+     */
+    public static synchronized void register(int tag, Class<? extends PageId> idClass, PageType type) {
+        if (tag <= 0 || tag >= types.length)
+            throw new IllegalArgumentException("tag must be between 1 and " + (types.length - 1));
+        if (idClasses[tag] != null && idClasses[tag] != idClass)
+            throw new IllegalArgumentException("tag " + tag + " is already registered");
+        types[tag] = type;
+        idClasses[tag] = idClass;
+        tags.put(idClass, (byte) tag);
+    }
+
+    private static synchronized byte tagOf(PageId pid) {
+        Byte tag = tags.get(pid.getClass());
+        if (tag == null)
+            throw new IllegalArgumentException("no log codec for " + pid.getClass().getName());
+        return tag;
+    }
+
+    private static synchronized PageType typeOf(int tag) throws IOException {
+        PageType type = tag > 0 && tag < types.length ? types[tag] : null;
+        if (type == null)
+            throw new IOException("unknown page tag " + tag + " in log");
+        return type;
+    }
+
+    /** @return the number of bytes putPageId writes for the specified id */
+    public static int idSize(PageId pid) {
+        return 1 + pid.serialize().length * Integer.BYTES;
+    }
+
+    /** Write a page id: its tag and its serialized fields. */
+    public static void putPageId(ByteBuffer buf, PageId pid) {
+        buf.put(tagOf(pid));
+        for (int field : pid.serialize())
+            buf.putInt(field);
+    }
+
+    /** Read a page id written by {@link #putPageId}. */
+    public static PageId getPageId(ByteBuffer buf) throws IOException {
+        return typeOf(buf.get()).readId(buf);
+    }
+
+    /** Build the page with the specified id from its data. */
+    public static Page newPage(PageId pid, byte[] data) throws IOException {
+        return typeOf(tagOf(pid)).readPage(pid, data);
+    }
+}
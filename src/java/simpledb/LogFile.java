@@ -2,8 +2,12 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,60 +43,128 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file itself holds a single long integer, the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files next to the log file
+(see LogSegments).  Log records are variable length, and a record is
+never split between two segments.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id and an integer length of the data that follows, so that
+a record can be read, or copied by logTruncate(), in one piece.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer representing the LSN of
+the record, i.e. where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, BEGIN, CHECKPOINT, CLR
+and DELTA
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li> Pages are referred to by their page id, encoded by LogCodec as a one
+byte tag followed by the integers of the id.  The tag also tells LogCodec
+how to build a page of that id from its data.
+
+<li> DELTA records are what logWrite() writes for an update.  They
+consist of the page id, an integer length followed by that many bytes of
+full page image, and a PageDelta: the byte ranges of the page that changed
+since the page was last logged, with their old and new bytes (see
+PageDelta for the format).  The full image is only written in the first
+record of a page after a checkpoint, so that redo always starts from a
+logged image of the page; later records have a length of 0.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
+the checkpoint was taken and their first log record on disk, and of the
+dirty page table: the pages whose logged changes may not be on disk yet,
+with their recLSN, the LSN of the oldest such record.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id and a long integer first record LSN
+for each active transaction, followed by an integer count of the number
+of dirty pages, and a page id and a long integer recLSN for each dirty
+page.  Checkpoints are fuzzy: no page is written when the checkpoint is
+taken.
+
+<li> CLR (compensation log) records are written when an update is undone,
+by rollback() or by recover().  They consist of a page id, an integer
+length and the page image the page was restored to.  CLRs are redone like
+a full image, but are never undone themselves.
+
+<li> Type 3 was the UPDATE record of earlier versions of the log, with
+full before and after images; it is no longer written or read.
 
 </ul>
 
+<p> The log sequence number (LSN) of a record encodes its segment and
+its offset in the segment.  Records never move, so LSNs stay valid across
+truncation, which deletes the segments before the oldest record still
+needed.  During recovery the page LSN of a page is the LSN of the last
+record in the log that wrote it.  Redo rebuilds a page from the last full image of
+it in the log and the deltas up to its page LSN, and skips every earlier
+record of the page.
+
+<p> Redo runs in parallel: recover() reads the log once and hands every
+record of a page to the same worker thread, chosen by the hash of the page
+id, so the records of a page are redone in log order while different pages
+are redone at the same time.  Undo starts once every worker is done.
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // the LSN of the last checkpoint
+    private LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
-    static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
+    static final int DELTA_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    // type, tid and length of the data of a record
+    final static int RECORD_HEADER_SIZE = INT_SIZE + LONG_SIZE + INT_SIZE;
+    final static int BUFFER_SIZE = 64 * 1024;
+
+    // records are encoded in this buffer before they are appended //protected by this
+    private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
 
-    long currentOffset = -1;//protected by this
+    long currentOffset = -1; // LSN of the end of the log //protected by this
+    long flushedLSN = 0; // the records before it are on disk //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    // number of threads redoing pages in recover() //protected by this
+    private int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    // records handed to a redo worker that it has not taken yet
+    static final int REDO_QUEUE_SIZE = 1024;
+
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // the last logged image of recently logged pages, the base of the next
+    // DELTA record of the page.  A page that is not in it, because it was
+    // not logged since the last checkpoint or was dropped to bound the
+    // memory used, is logged with a full image
+    static final int MAX_LOGGED_IMAGES = 1024;
+    final LinkedHashMap<PageId,byte[]> loggedImages = new LinkedHashMap<PageId,byte[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        protected boolean removeEldestEntry(Map.Entry<PageId,byte[]> eldest) {
+            return size() > MAX_LOGGED_IMAGES;
+        }
+    };
+
+    // group commit: a committing transaction takes a ticket and waits until
+    // the log has been forced past its commit record
+    private LogFlusher flusher; //protected by this
+    private long commitsRequested = 0; //protected by this
+    private long commitsDurable = 0; //protected by this
+    private IOException flushError; //protected by this
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,8 +177,17 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log file's name
+        @param segmentSize The size of the segment files of the log
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,17 +208,84 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            writeHeader(NO_CHECKPOINT_ID);
+            segments.clear();
+            currentOffset = segments.endLsn();
         }
     }
 
+    /** Start encoding a record in the output buffer.  The caller puts
+        exactly payloadSize bytes of data and then calls appendRecord(). */
+    private ByteBuffer beginRecord(int type, long tid, int payloadSize) {
+        int size = RECORD_HEADER_SIZE + payloadSize + LONG_SIZE;
+        if (out.capacity() < size)
+            out = ByteBuffer.allocate(Math.max(size, 2 * out.capacity()));
+        out.clear();
+        out.putInt(type);
+        out.putLong(tid);
+        out.putInt(payloadSize);
+        return out;
+    }
+
+    /** Append the record encoded in the output buffer to the log, ending
+        it with its LSN, with a single write.
+        @return the LSN of the record
+    */
+    private long appendRecord() throws IOException {
+        long start = segments.reserve(out.position() + LONG_SIZE);
+        out.putLong(start);
+        out.flip();
+        segments.write(out, start);
+        currentOffset = segments.endLsn();
+        return start;
+    }
+
+    /** Write the LSN of the last checkpoint to the log file and force it */
+    private void writeHeader(long cpLoc) throws IOException {
+        raf.seek(0);
+        raf.writeLong(cpLoc);
+        raf.getChannel().force(true);
+    }
+
+    /** @return the LSN of the last checkpoint, or NO_CHECKPOINT_ID */
+    private long readHeader() throws IOException {
+        if (raf.length() < LONG_SIZE)
+            return NO_CHECKPOINT_ID;
+        raf.seek(0);
+        return raf.readLong();
+    }
+
+    /** Return the bytes of the record at the specified LSN, from its
+        type to its trailing LSN.
+        @return the record, or null if the log ends before the record is
+        complete (e.g. a crash in the middle of writing it)
+    */
+    private ByteBuffer recordAt(long lsn) throws IOException {
+        ByteBuffer buf = segments.read(lsn, RECORD_HEADER_SIZE);
+        if (buf == null)
+            return null;
+        int length = buf.getInt(buf.position() + INT_SIZE + LONG_SIZE);
+        if (length < 0)
+            return null;
+        int size = RECORD_HEADER_SIZE + length + LONG_SIZE;
+        buf = segments.read(lsn, size);
+        if (buf == null)
+            return null;
+        ByteBuffer rec = buf.slice();
+        rec.limit(size);
+        if (rec.getLong(size - LONG_SIZE) != lsn)
+            return null;
+        return rec;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the number of segment files the log is stored in */
+    public synchronized int getNumSegments() {
+        return segments.numSegments();
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -158,10 +306,8 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId(), 0);
+                appendRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,7 +315,9 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  With group commit, the record is
+        appended and the caller waits until the flusher thread has forced
+        the log, together with the commit records of other transactions.
 
         @param tid The committing transaction.
     */
@@ -178,121 +326,178 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        beginRecord(COMMIT_RECORD, tid.getId(), 0);
+        appendRecord();
         tidToFirstLogRecord.remove(tid.getId());
+
+        long ticket = ++commitsRequested;
+        if (flusher == null) {
+            force();
+            return;
+        }
+        notifyAll();
+        boolean interrupted = false;
+        while (commitsDurable < ticket) {
+            if (flushError != null)
+                throw new IOException("group commit failed to force the log", flushError);
+            if (flusher == null) {
+                force();
+                break;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Set the number of threads recover() redoes pages with. */
+    public synchronized void setRecoveryThreads(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("number of recovery threads must be positive");
+        recoveryThreads = threads;
+    }
+
+    /** Start group commit: commits wait for a background thread to force
+        the log instead of each forcing it themselves.
+        @param delay time the flusher waits after the first pending commit
+        before forcing the log, in milliseconds
+    */
+    public synchronized void startGroupCommit(long delay) {
+        stopGroupCommit();
+        flusher = new LogFlusher(this, delay);
+        flusher.start();
+    }
+
+    /** Stop group commit, if it is running.  Commits that are still
+        waiting force the log themselves. */
+    public synchronized void stopGroupCommit() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+            notifyAll();
+        }
+    }
+
+    /** Return true if commits are forced by a group commit flusher */
+    public synchronized boolean isGroupCommit() {
+        return flusher != null;
+    }
+
+    /** Wait for pending commits and force the log once for all of them.
+        Called in a loop by the {@link LogFlusher}; the log is forced
+        without holding the lock on this log file, so that transactions can
+        keep appending records meanwhile.
+        @param f the calling flusher; returns if it was stopped
+        @param delay time to wait after the first pending commit, in milliseconds
+    */
+    void flushCommits(LogFlusher f, long delay) throws InterruptedException, IOException {
+        synchronized (this) {
+            while (commitsDurable >= commitsRequested) {
+                if (flusher != f)
+                    return;
+                wait();
+            }
+        }
+        if (delay > 0)
+            Thread.sleep(delay);
+
+        FileChannel channel;
+        long target, lsn;
+        synchronized (this) {
+            target = commitsRequested;
+            lsn = currentOffset;
+            channel = segments.currentChannel();
+        }
+        try {
+            channel.force(true);
+        } catch (ClosedChannelException e) {
+            // the log was thrown out meanwhile; the records of the pending
+            // commits are gone with it
+        } catch (IOException e) {
+            synchronized (this) {
+                flushError = e;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            if (commitsDurable < target)
+                commitsDurable = target;
+            if (flushedLSN < lsn)
+                flushedLSN = lsn;
+            notifyAll();
+        }
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** Write a DELTA record to disk for the specified tid and page
+        (with provided         before and after images.)  Only the byte
+        ranges that changed since the page was last logged are written.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
+        @return The LSN of the record
         @see simpledb.Page#getBeforeImage
+        @see simpledb.PageDelta
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
-        /* update record conists of
+        /* delta record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           length of the data
+           page id (see LogCodec)
+           full page image length, and image
+           page delta
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        PageId pid = after.getId();
+        byte[] data = after.getPageData();
+        byte[] base = loggedImages.get(pid);
+        boolean full = base == null;
+        if (full)
+            base = before.getPageData();
+        PageDelta delta = PageDelta.diff(base, data);
+
+        int imageLength = full ? data.length : 0;
+        ByteBuffer buf = beginRecord(DELTA_RECORD, tid.getId(),
+                LogCodec.idSize(pid) + INT_SIZE + imageLength + delta.encodedSize());
+        LogCodec.putPageId(buf, pid);
+        buf.putInt(imageLength);
+        if (full)
+            buf.put(data);
+        delta.write(buf);
+        long lsn = appendRecord();
+        loggedImages.put(pid, data);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
+    /** Write a CLR record for the specified tid and page, recording that
+        an update of the transaction was undone by restoring the page to
+        the specified image.  Caller must hold the lock on this log file.
+        @param tid The transaction whose update is undone
+        @param restored The image the page is restored to
+    */
+    private void logClr(long tid, Page restored) throws IOException {
+        preAppend();
+        PageId pid = restored.getId();
+        byte[] data = restored.getPageData();
+        ByteBuffer buf = beginRecord(CLR_RECORD, tid, LogCodec.idSize(pid) + INT_SIZE + data.length);
+        LogCodec.putPageId(buf, pid);
+        buf.putInt(data.length);
+        buf.put(data);
+        appendRecord();
+        loggedImages.put(pid, data);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +512,95 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId(), 0);
+        tidToFirstLogRecord.put(tid.getId(), appendRecord());
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: instead of flushing the buffer pool, it records the dirty
+        page table, so recovery starts redo at the oldest recLSN in it.
+        Transactions are only blocked while the record is written. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            // the buffer pool logs a page and gives it a recLSN while holding
+            // the lock on this log file, so every page with a logged change
+            // that is not on disk yet is in the snapshot
+            Map<PageId,Long> dirtyPages = Database.getBufferPool().dirtyPageTable();
+            int size = INT_SIZE + tidToFirstLogRecord.size() * 2 * LONG_SIZE + INT_SIZE;
+            for (PageId pid : dirtyPages.keySet())
+                size += LogCodec.idSize(pid) + LONG_SIZE;
+            ByteBuffer buf = beginRecord(CHECKPOINT_RECORD, -1, size); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            buf.putInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                buf.putLong(e.getKey());
+                buf.putLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            buf.putInt(dirtyPages.size());
+            for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+                LogCodec.putPageId(buf, e.getKey());
+                buf.putLong(e.getValue());
             }
+
+            //once the CP is on disk, make sure the CP location in the log
+            // file is updated
+            long cpLoc = appendRecord();
+            force();
+            writeHeader(cpLoc);
+            // redo of the pages that are not in the dirty page table starts
+            // at this checkpoint, so log the next update of every page with
+            // a full image
+            loggedImages.clear();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
+        consumption: delete the segments that only hold records before
+        the last checkpoint, the first records of the transactions active
+        at the checkpoint, and the recLSNs of its dirty pages.  No record
+        is copied, and the files are deleted without holding the lock on
+        this log file. */
+    public void logTruncate() throws IOException {
+        List<File> detached;
+        synchronized (this) {
+            preAppend();
+            long cpLoc = readHeader();
+            if (cpLoc == NO_CHECKPOINT_ID)
+                return;
+
+            LogRecord cp = readRecord(cpLoc);
+            if (cp == null || cp.type != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+            // keep the records of the active transactions, and the records
+            // redo may need for the dirty pages
+            long minLogRecord = cpLoc;
+            for (long firstLogRecord : cp.active.values()) {
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+            for (long recLSN : cp.dirty.values()) {
+                if (recLSN < minLogRecord) {
+                    minLogRecord = recLSN;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
+            detached = segments.detachBefore(minLogRecord);
+            Debug.log("TRUNCATING LOG; " + detached.size() + " SEGMENTS BEFORE " + minLogRecord);
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        LogSegments.delete(detached);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,18 +617,297 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null)
+                    return;
+
+                HashSet<Long> tids = new HashSet<Long>();
+                tids.add(tid.getId());
+                Map<PageId,List<LogRecord>> chains = undoChains(firstRecord, currentOffset, tids).get(tid.getId());
+                if (chains == null)
+                    return;
+                undo(tid.getId(), chains, loggedImages);
+            }
+        }
+    }
+
+    /** Undo the updates of a transaction: log a CLR for each page and
+        force the log, then write the pages to disk and drop them from the
+        buffer pool.  Caller must hold the buffer pool and log file locks.
+        @param tid The transaction whose updates are undone
+        @param chains The records of tid for each page, see undoChains()
+        @param current The current image of the pages; pages not in it are
+          read from disk, where they are in their last logged state since
+          the buffer pool logs a page before writing it
+    */
+    private void undo(long tid, Map<PageId,List<LogRecord>> chains, Map<PageId,byte[]> current)
+        throws IOException {
+        ArrayList<Page> restored = new ArrayList<Page>();
+        for (Map.Entry<PageId,List<LogRecord>> e : chains.entrySet()) {
+            byte[] data = current.get(e.getKey());
+            if (data == null)
+                data = readDiskImage(e.getKey());
+            restored.add(restore(e.getValue(), data.clone()));
+        }
+        for (Page before : restored)
+            logClr(tid, before);
+        force();
+        for (Page before : restored)
+            installPage(before);
+    }
+
+    /** Undo the records of a page in reverse order, starting from its
+        current image, and return the page as it was before the first
+        record. */
+    private Page restore(List<LogRecord> chain, byte[] data) throws IOException {
+        for (int i = chain.size() - 1; i >= 0; i--)
+            chain.get(i).delta.undo(data);
+        return LogCodec.newPage(chain.get(0).pid, data);
+    }
+
+    /** Read the data of a page from its file.  A page that does not exist
+        on disk yet is read as zeroes, like a newly allocated page. */
+    private static byte[] readDiskImage(PageId pid) {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            return new byte[BufferPool.getPageSize()];
+        }
+    }
+
+    /** Write a page image from the log to its file, and drop any cached
+        copy of the page from the buffer pool. */
+    private void installPage(Page p) throws IOException {
+        PageId pid = p.getId();
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+        Database.getBufferPool().discardPage(pid);
+    }
+
+    /** Scan the log between two offsets and collect, for each of the
+        specified transactions, its DELTA records of every page it updated,
+        in log order.  Undoing them in reverse order restores the state of
+        the page before the transaction touched it.
+        @return a map from transaction id to the records of each of its pages
+    */
+    private Map<Long,Map<PageId,List<LogRecord>>> undoChains(long start, long end, Set<Long> tids)
+        throws IOException {
+        HashMap<Long,Map<PageId,List<LogRecord>>> chains = new HashMap<Long,Map<PageId,List<LogRecord>>>();
+        long pos = start;
+        while (pos < end) {
+            LogRecord r = readRecord(pos);
+            if (r == null)
+                break;
+            pos = r.end;
+            if (r.type != DELTA_RECORD || !tids.contains(r.tid))
+                continue;
+            Map<PageId,List<LogRecord>> pages = chains.get(r.tid);
+            if (pages == null) {
+                pages = new LinkedHashMap<PageId,List<LogRecord>>();
+                chains.put(r.tid, pages);
             }
+            List<LogRecord> chain = pages.get(r.pid);
+            if (chain == null) {
+                chain = new ArrayList<LogRecord>();
+                pages.put(r.pid, chain);
+            }
+            chain.add(r);
         }
+        return chains;
+    }
+
+    /** Redoes the records of the pages whose id hashes to its partition,
+        in the order recover() hands them over, then writes the redone
+        pages to their files.  The caller drops the pages from the buffer
+        pool afterwards, since the workers do not hold its lock.
+    */
+    private static class RedoWorker extends Thread {
+        private static final LogRecord END = new LogRecord();
+
+        private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<LogRecord>(REDO_QUEUE_SIZE);
+        // the redone image of each page of the partition
+        final HashMap<PageId,byte[]> pages = new HashMap<PageId,byte[]>();
+        final HashMap<PageId,Long> pageLSNs = new HashMap<PageId,Long>();
+        volatile IOException error;
+
+        RedoWorker(int partition) {
+            super("RedoWorker-" + partition);
+            setDaemon(true);
+        }
+
+        /** Hand over the next record of a page of this partition. */
+        void add(LogRecord r) throws IOException {
+            try {
+                queue.put(r);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted during redo");
+            }
+        }
+
+        /** Tell the worker that the log ends and wait until it is done. */
+        void finish() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(END);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        public void run() {
+            LogRecord r;
+            while ((r = take()) != END) {
+                // after an error, keep taking records so that recover()
+                // is never blocked on a full queue
+                if (error != null)
+                    continue;
+                try {
+                    // a full image replaces the page, records before it
+                    // are overwritten anyway
+                    byte[] data = r.image;
+                    if (data == null) {
+                        data = pages.get(r.pid);
+                        if (data == null)
+                            data = readDiskImage(r.pid);
+                        r.delta.redo(data);
+                    }
+                    pages.put(r.pid, data);
+                    pageLSNs.put(r.pid, r.lsn);
+                } catch (RuntimeException e) {
+                    error = new IOException("redo of LSN " + r.lsn + " failed", e);
+                }
+            }
+            if (error != null)
+                return;
+            try {
+                for (Map.Entry<PageId,byte[]> e : pages.entrySet()) {
+                    Debug.log("REDO page " + e.getKey() + " up to LSN " + pageLSNs.get(e.getKey()));
+                    Page p = LogCodec.newPage(e.getKey(), e.getValue());
+                    Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException("redo failed", e);
+            }
+        }
+
+        private LogRecord take() {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    // recover() waits for the end of the log
+                }
+            }
+        }
+    }
+
+    /** A log record read back by readRecord() */
+    private static class LogRecord {
+        int type;
+        long tid;
+        long lsn;        // offset of the record in the log
+        long end;        // offset of the next record
+        PageId pid;      // CLR and DELTA records
+        byte[] image;    // CLR records, DELTA records with a full image
+        PageDelta delta; // DELTA records
+        HashMap<Long,Long> active; // CHECKPOINT records: tid -> first record
+        HashMap<PageId,Long> dirty; // CHECKPOINT records: page -> recLSN
+    }
+
+    /** Read the log record at the specified LSN, or the first record of
+        the next segment if the LSN is the end of its segment.
+        @return the record, or null if the log ends before the record is
+        complete (e.g. a crash in the middle of writing it)
+    */
+    private LogRecord readRecord(long pos) throws IOException {
+        pos = segments.normalize(pos);
+        ByteBuffer rec = recordAt(pos);
+        if (rec == null)
+            return null;
+        LogRecord r = new LogRecord();
+        r.lsn = pos;
+        r.end = pos + rec.limit();
+        try {
+            r.type = rec.getInt();
+            r.tid = rec.getLong();
+            rec.getInt();
+            switch (r.type) {
+            case CLR_RECORD:
+                r.pid = LogCodec.getPageId(rec);
+                r.image = new byte[rec.getInt()];
+                rec.get(r.image);
+                break;
+            case DELTA_RECORD:
+                r.pid = LogCodec.getPageId(rec);
+                int imageLength = rec.getInt();
+                if (imageLength > 0) {
+                    r.image = new byte[imageLength];
+                    rec.get(r.image);
+                }
+                r.delta = PageDelta.read(rec);
+                break;
+            case CHECKPOINT_RECORD:
+                r.active = new HashMap<Long,Long>();
+                int numXactions = rec.getInt();
+                while (numXactions-- > 0) {
+                    long xid = rec.getLong();
+                    r.active.put(xid, rec.getLong());
+                }
+                r.dirty = new HashMap<PageId,Long>();
+                int numDirty = rec.getInt();
+                while (numDirty-- > 0) {
+                    PageId pid = LogCodec.getPageId(rec);
+                    r.dirty.put(pid, rec.getLong());
+                }
+                break;
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+                break;
+            default:
+                return null;
+            }
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+        return r;
+    }
+
+    /** Return true if the specified transaction has begun and has not
+        committed or aborted yet, i.e. its updates can be rolled back
+        from the log
+    */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            stopGroupCommit();
+            // with nothing left to redo, the checkpoint makes start up quick
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -494,6 +923,108 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (raf.length() < LONG_SIZE)
+                    writeHeader(NO_CHECKPOINT_ID);
+                long cpLoc = readHeader();
+
+                // analysis: the updates before the last checkpoint are on
+                // disk, except for the pages in its dirty page table, so
+                // start from the checkpoint's active transactions and read
+                // the log from the oldest recLSN on
+                HashMap<Long,Long> active = new HashMap<Long,Long>();
+                HashMap<PageId,Long> dirty = new HashMap<PageId,Long>();
+                long start = segments.firstLsn();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    LogRecord cp = readRecord(cpLoc);
+                    if (cp == null || cp.type != CHECKPOINT_RECORD)
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                    active.putAll(cp.active);
+                    dirty.putAll(cp.dirty);
+                    start = cp.end;
+                    for (long recLSN : dirty.values())
+                        start = Math.min(start, recLSN);
+                }
+                // redo: repeat history, rebuilding each page up to its page
+                // LSN from its last full image and the deltas after it.  The
+                // result does not depend on what reached the disk before
+                // the crash, so redo is idempotent.  The workers redo the
+                // records while the log is still being read
+                RedoWorker[] workers = new RedoWorker[recoveryThreads];
+                for (int i = 0; i < workers.length; i++) {
+                    workers[i] = new RedoWorker(i);
+                    workers[i].start();
+                }
+                long end = start;
+                LogRecord r;
+                try {
+                    while ((r = readRecord(end)) != null) {
+                        end = r.end;
+                        if (r.lsn < cpLoc) {
+                            // before the checkpoint, only the changes from the
+                            // recLSN of a dirty page on may be missing on disk;
+                            // the checkpoint knows the state of the transactions
+                            Long recLSN = r.pid == null ? null : dirty.get(r.pid);
+                            if (recLSN == null || r.lsn < recLSN)
+                                continue;
+                        }
+                        switch (r.type) {
+                        case BEGIN_RECORD:
+                            active.put(r.tid, r.lsn);
+                            break;
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            active.remove(r.tid);
+                            break;
+                        case CLR_RECORD:
+                        case DELTA_RECORD:
+                            workers[Math.floorMod(r.pid.hashCode(), workers.length)].add(r);
+                            break;
+                        }
+                    }
+                } finally {
+                    for (RedoWorker w : workers)
+                        w.finish();
+                }
+                // drop a record that was cut off by the crash
+                segments.truncate(end);
+                currentOffset = end;
+
+                HashMap<PageId,byte[]> redone = new HashMap<PageId,byte[]>();
+                IOException error = null;
+                for (RedoWorker w : workers) {
+                    if (w.error != null && error == null)
+                        error = w.error;
+                    redone.putAll(w.pages);
+                }
+                if (error != null)
+                    throw error;
+                for (PageId pid : redone.keySet())
+                    Database.getBufferPool().discardPage(pid);
+
+                // undo: restore the pages of transactions that neither
+                // committed nor aborted, and log their aborts
+                if (!active.isEmpty()) {
+                    long firstRecord = end;
+                    for (Long first : active.values())
+                        firstRecord = Math.min(firstRecord, first);
+                    Map<Long,Map<PageId,List<LogRecord>>> undoChains =
+                        undoChains(firstRecord, end, active.keySet());
+                    for (Long tid : active.keySet()) {
+                        Map<PageId,List<LogRecord>> pages = undoChains.get(tid);
+                        if (pages != null)
+                            undo(tid, pages, redone);
+                        preAppend();
+                        beginRecord(ABORT_RECORD, tid, 0);
+                        appendRecord();
+                    }
+                    force();
+                }
+                tidToFirstLogRecord.clear();
+                loggedImages.clear();
+
+                // everything is on disk now, so the dirty page table of this
+                // checkpoint is empty and the next restart can start from here
+                logCheckpoint();
             }
          }
     }
@@ -501,10 +1032,42 @@ public class LogFile {
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
+        synchronized (this) {
+            System.out.println("0: checkpoint at " + readHeader());
+            LogRecord r;
+            for (long pos = segments.firstLsn(); (r = readRecord(pos)) != null; pos = r.end) {
+                String s = r.lsn + ": tid " + r.tid + " ";
+                switch (r.type) {
+                case ABORT_RECORD: s += "ABORT"; break;
+                case COMMIT_RECORD: s += "COMMIT"; break;
+                case BEGIN_RECORD: s += "BEGIN"; break;
+                case CLR_RECORD: s += "CLR " + r.pid; break;
+                case DELTA_RECORD: s += "DELTA " + r.pid + (r.image != null ? ", full image" : "")
+                    + ", " + r.delta.numRanges() + " ranges, " + r.delta.changedBytes() + " bytes"; break;
+                case CHECKPOINT_RECORD: s += "CHECKPOINT active " + r.active + ", dirty " + r.dirty; break;
+                }
+                System.out.println(s);
+            }
+        }
+    }
+
+    /** Force the log if the record with the specified LSN may not be on
+        disk yet, as required before writing a page that contains its
+        changes.
+    */
+    public synchronized void forceTo(long lsn) throws IOException {
+        if (lsn >= flushedLSN)
+            force();
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        flushedLSN = currentOffset;
+        segments.force();
+        // every commit record appended so far is durable now
+        if (commitsDurable < commitsRequested) {
+            commitsDurable = commitsRequested;
+            notifyAll();
+        }
     }
 
 }
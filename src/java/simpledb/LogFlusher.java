@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * LogFlusher is the background thread of group commit.  Committing
+ * transactions append their COMMIT record to the {@link LogFile} and wait;
+ * the flusher forces the log once for all commit records appended since its
+ * last force and then releases their transactions together.
+ * <p>
+ * While one force is in progress, further commits keep appending to the log,
+ * so the number of commits per force grows with the commit rate.  An
+ * optional delay makes the flusher wait a little longer after the first
+ * pending commit, trading commit latency for larger groups.
+ */
+public class LogFlusher extends Thread {
+
+    private final LogFile logfile;
+    private final long delay;
+    private volatile boolean running;
+
+    /**
+     * @param logfile the log to force
+     * @param delay time to wait after the first pending commit before
+     *   forcing the log, in milliseconds; 0 to force right away
+     */
+    public LogFlusher(LogFile logfile, long delay) {
+        super("LogFlusher");
+        if (delay < 0)
+            throw new IllegalArgumentException("delay must not be negative");
+        this.logfile = logfile;
+        this.delay = delay;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                logfile.flushCommits(this, delay);
+            } catch (InterruptedException e) {
+                continue;
+            } catch (IOException e) {
+                // the log file fails the waiting and later commits
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stop the flusher; returns without waiting for the thread to exit.
+     * The thread is not interrupted, since interrupting a force would close
+     * the log file's channel; the log file wakes it up instead.
+     */
+    public void shutdown() {
+        running = false;
+    }
+}
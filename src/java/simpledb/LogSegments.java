@@ -0,0 +1,275 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the records of a {@link LogFile} in a sequence of
+ * segment files of about the same size, named after the log file with the
+ * number of the segment appended.
+ * <p>
+ * A log sequence number (LSN) encodes the number of its segment in its high
+ * bits and the offset in the segment in its low {@link #OFFSET_BITS} bits,
+ * so LSNs grow with the log and never change.  A record is never split
+ * between two segments: when it does not fit in the current segment, a new
+ * segment is started, and a record larger than a segment gets a segment of
+ * its own.  Space is reclaimed by deleting whole segments at the head of the
+ * log, without copying the records that are kept.
+ * <p>
+ * Not thread safe; the log file serializes access.
+ */
+public class LogSegments {
+
+    /** Number of low bits of an LSN holding the offset in its segment */
+    public static final int OFFSET_BITS = 32;
+
+    /** Default size of a segment, in bytes */
+    public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+
+    private static class Segment {
+        final RandomAccessFile file;
+        long length; // only the last segment grows
+
+        Segment(RandomAccessFile file) throws IOException {
+            this.file = file;
+            this.length = file.length();
+        }
+    }
+
+    // the open segments, by number
+    private final TreeMap<Long, Segment> files = new TreeMap<Long, Segment>();
+
+    // the part of a segment read last; reading records sequentially mostly
+    // stays within it
+    private ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+    private long windowLsn = 0;
+
+    /**
+     * Open the segments of the specified log file that exist on disk.
+     * @param logFile the log file; its segments are in the same directory
+     * @param segmentSize the size at which a new segment is started
+     */
+    public LogSegments(File logFile, long segmentSize) throws IOException {
+        if (segmentSize <= 0 || segmentSize >= (1L << OFFSET_BITS))
+            throw new IllegalArgumentException("segment size out of range");
+        File abs = logFile.getAbsoluteFile();
+        this.dir = abs.getParentFile();
+        this.prefix = abs.getName() + ".";
+        this.segmentSize = segmentSize;
+        window.limit(0);
+        File[] existing = dir.listFiles();
+        if (existing != null) {
+            for (File f : existing) {
+                long segment = segmentNumber(f.getName());
+                if (segment >= 0)
+                    files.put(segment, new Segment(new RandomAccessFile(f, "rw")));
+            }
+        }
+    }
+
+    public static long lsn(long segment, long offset) {
+        return (segment << OFFSET_BITS) | offset;
+    }
+
+    public static long segmentOf(long lsn) {
+        return lsn >>> OFFSET_BITS;
+    }
+
+    public static long offsetOf(long lsn) {
+        return lsn & ((1L << OFFSET_BITS) - 1);
+    }
+
+    private long segmentNumber(String name) {
+        if (!name.startsWith(prefix))
+            return -1;
+        String suffix = name.substring(prefix.length());
+        if (suffix.isEmpty())
+            return -1;
+        for (int i = 0; i < suffix.length(); i++) {
+            if (!Character.isDigit(suffix.charAt(i)))
+                return -1;
+        }
+        return Long.parseLong(suffix);
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, prefix + String.format("%010d", segment));
+    }
+
+    private void create(long segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+        file.setLength(0);
+        files.put(segment, new Segment(file));
+    }
+
+    /** @return the LSN of the first byte of the log */
+    public long firstLsn() {
+        return files.isEmpty() ? lsn(0, 0) : lsn(files.firstKey(), 0);
+    }
+
+    /** @return the LSN following the last byte of the log */
+    public long endLsn() {
+        if (files.isEmpty())
+            return lsn(0, 0);
+        Map.Entry<Long, Segment> last = files.lastEntry();
+        return lsn(last.getKey(), last.getValue().length);
+    }
+
+    /** @return the number of segments */
+    public int numSegments() {
+        return files.size();
+    }
+
+    /** Delete every segment and start the log over with an empty segment 0. */
+    public void clear() throws IOException {
+        for (Map.Entry<Long, Segment> e : files.entrySet()) {
+            e.getValue().file.close();
+            segmentFile(e.getKey()).delete();
+        }
+        files.clear();
+        window.limit(0);
+        create(0);
+    }
+
+    /**
+     * Return the LSN at which a record of the specified size is appended.
+     * Starts a new segment, after forcing the current one, if the record
+     * does not fit in the current segment.
+     */
+    public long reserve(int size) throws IOException {
+        long end = endLsn();
+        long offset = offsetOf(end);
+        if (files.isEmpty() || (offset > 0 && offset + size > segmentSize)) {
+            if (!files.isEmpty())
+                force();
+            long segment = files.isEmpty() ? 0 : segmentOf(end) + 1;
+            create(segment);
+            return lsn(segment, 0);
+        }
+        return end;
+    }
+
+    /** Write the bytes remaining in the buffer at the specified LSN. */
+    public void write(ByteBuffer buf, long lsn) throws IOException {
+        long segment = segmentOf(lsn);
+        long pos = offsetOf(lsn);
+        if (segment == segmentOf(windowLsn) && pos < offsetOf(windowLsn) + window.limit())
+            window.limit(0);
+        Segment s = files.get(segment);
+        FileChannel channel = s.file.getChannel();
+        while (buf.hasRemaining())
+            pos += channel.write(buf, pos);
+        s.length = Math.max(s.length, pos);
+    }
+
+    /**
+     * If the LSN is the end of a segment that is followed by another one,
+     * return the start of the next segment, else the LSN itself.
+     */
+    public long normalize(long lsn) throws IOException {
+        Segment s = files.get(segmentOf(lsn));
+        if (s != null && offsetOf(lsn) >= s.length && files.containsKey(segmentOf(lsn) + 1))
+            return lsn(segmentOf(lsn) + 1, 0);
+        return lsn;
+    }
+
+    /**
+     * Return the read window positioned at the specified LSN, with at least
+     * n bytes remaining, reading the segment into it as needed.
+     * @return the window, or null if the segment ends before lsn + n
+     */
+    public ByteBuffer read(long lsn, int n) throws IOException {
+        long segment = segmentOf(lsn);
+        long pos = offsetOf(lsn);
+        if (segment != segmentOf(windowLsn) || pos < offsetOf(windowLsn)
+                || pos + n > offsetOf(windowLsn) + window.limit()) {
+            Segment s = files.get(segment);
+            if (s == null || pos + n > s.length)
+                return null;
+            if (window.capacity() < n)
+                window = ByteBuffer.allocate(Math.max(n, 2 * window.capacity()));
+            window.clear();
+            windowLsn = lsn;
+            FileChannel channel = s.file.getChannel();
+            while (window.hasRemaining()) {
+                if (channel.read(window, pos + window.position()) < 0)
+                    break;
+            }
+            window.flip();
+            if (window.limit() < n)
+                return null;
+        }
+        window.position((int) (pos - offsetOf(windowLsn)));
+        return window;
+    }
+
+    /** Drop everything from the specified LSN on, e.g. a torn record. */
+    public void truncate(long lsn) throws IOException {
+        window.limit(0);
+        long segment = segmentOf(lsn);
+        while (!files.isEmpty() && files.lastKey() > segment) {
+            long last = files.lastKey();
+            files.remove(last).file.close();
+            segmentFile(last).delete();
+        }
+        Segment s = files.get(segment);
+        if (s != null) {
+            s.file.setLength(offsetOf(lsn));
+            s.length = offsetOf(lsn);
+        }
+    }
+
+    /**
+     * Remove the segments that only hold records before the specified LSN
+     * from the log.  The current segment is always kept.
+     * @return the removed segments, to pass to {@link #delete} once the
+     *   caller no longer needs to block appends
+     */
+    public List<File> detachBefore(long lsn) throws IOException {
+        ArrayList<File> detached = new ArrayList<File>();
+        long segment = segmentOf(lsn);
+        while (files.size() > 1 && files.firstKey() < segment) {
+            long first = files.firstKey();
+            files.remove(first).file.close();
+            detached.add(segmentFile(first));
+        }
+        if (!detached.isEmpty() && segmentOf(windowLsn) < segment)
+            window.limit(0);
+        return detached;
+    }
+
+    /** Delete segment files returned by {@link #detachBefore}. */
+    public static void delete(List<File> detached) {
+        for (File f : detached)
+            f.delete();
+    }
+
+    /** @return the channel of the segment records are appended to, or null */
+    public FileChannel currentChannel() {
+        return files.isEmpty() ? null : files.lastEntry().getValue().file.getChannel();
+    }
+
+    /**
+     * Force the current segment to disk; earlier segments were forced when
+     * the next one was started.
+     */
+    public void force() throws IOException {
+        FileChannel channel = currentChannel();
+        if (channel != null)
+            channel.force(true);
+    }
+
+    public void close() throws IOException {
+        for (Segment s : files.values())
+            s.file.close();
+        files.clear();
+    }
+}
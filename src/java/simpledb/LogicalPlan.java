@@ -272,7 +272,9 @@ public class LogicalPlan {
     }
 
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
-     *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan,
+     *   and reads each table with a sequential scan or an index scan, whichever is estimated to
+     *   be cheaper.
      *  @param t The transaction that the returned OpIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -306,6 +308,20 @@ public class LogicalPlan {
 
         }
 
+        // replace the sequential scans of tables better read through an index
+        HashMap<String,LogicalFilterNode> indexFilters = new HashMap<String,LogicalFilterNode>();
+        boolean orderedByScan = false;
+        for (LogicalScanNode table : tables) {
+            AccessPath path = chooseAccessPath(t, table,
+                    statsMap.get(Database.getCatalog().getTableName(table.t)), explain);
+            if (path == null)
+                continue;
+            subplanMap.put(table.alias, path.scan);
+            if (path.filter != null)
+                indexFilters.put(table.alias, path.filter);
+            orderedByScan |= path.ordered;
+        }
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -319,7 +335,7 @@ public class LogicalPlan {
             TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
             
             try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
+                ftyp = td.getFieldType(filterField(td, lf));
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
@@ -330,15 +346,17 @@ public class LogicalPlan {
 
             Predicate p = null;
             try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
+                p = new Predicate(filterField(subplan.getTupleDesc(), lf), lf.p,f);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // the filter answered by an index scan needs no Filter
+            if (indexFilters.get(lf.tableAlias) != lf)
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel= s.estimateSelectivity(filterField(subplan.getTupleDesc(), lf), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -475,13 +493,142 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !orderedByScan) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * Helper function of physicalPlan
+     * Find the field of a filter in the output of a scan.  Index scans prefix
+     * the fields of the table with its alias, but SeqScan returns the names
+     * of the table, so the pure name is tried too.
+     */
+    private static int filterField(TupleDesc td, LogicalFilterNode lf) throws NoSuchElementException {
+        try {
+            return td.fieldNameToIndex(lf.fieldQuantifiedName);
+        } catch (NoSuchElementException e) {
+            return td.fieldNameToIndex(lf.fieldPureName);
+        }
+    }
+
+    /** A way to read a table other than a sequential scan */
+    private static class AccessPath {
+        OpIterator scan;
+        LogicalFilterNode filter; // the filter the scan applies, or null
+        boolean ordered;          // the scan returns the tuples in ORDER BY order
+        double cost;
+        String description;
+    }
+
+    /**
+     * Helper function of physicalPlan
+     * Choose between a sequential scan of a table and a scan of an index on
+     * it, by their cost estimated from the statistics of the table:
+     * <ul>
+     * <li>a SeqScan reads every page of the table, for estimateScanCost().</li>
+     * <li>a BTreeScan of a BTreeFile, with an IndexPredicate from a filter on
+     *   its key field, reads about one page to find the first leaf, then the
+     *   fraction of the leaves the filter selects.</li>
+     * <li>a SecondaryIndexScan of a heap file, with an IndexPredicate from a
+     *   filter on the indexed field, reads about one page to find the first
+     *   entry, then one heap page per tuple the filter selects.</li>
+     * </ul>
+     * When the query reads a single BTreeFile, with no join or aggregate,
+     * and is ordered on its key field, a scan of the tree returns the tuples
+     * in that order (with BTreeReverseScan for a descending order) and saves
+     * the OrderBy.  A full scan of the tree then costs as much as a SeqScan,
+     * and wins the tie.
+     * @return the chosen path, or null if the SeqScan is best
+     */
+    private AccessPath chooseAccessPath(TransactionId t, LogicalScanNode table, TableStats s, boolean explain) {
+        if (s == null)
+            return null;
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        TupleDesc td = file.getTupleDesc();
+        int keyField = file instanceof BTreeFile ? ((BTreeFile) file).keyField() : -1;
+        boolean wantOrder = keyField >= 0 && hasOrderBy && !hasAgg && joins.isEmpty()
+                && tables.size() == 1
+                && oByField.equals(table.alias + "." + td.getFieldName(keyField));
+        double seqCost = s.estimateScanCost();
+
+        AccessPath best = null;
+        if (wantOrder)
+            best = btreePath(t, table, null, null, seqCost, true);
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias))
+                continue;
+            if (lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                continue;
+            int field;
+            Field c;
+            try {
+                field = filterField(td, lf);
+                if (td.getFieldType(field) == Type.INT_TYPE)
+                    c = new IntField(Integer.parseInt(lf.c));
+                else
+                    c = new StringField(lf.c, Type.STRING_LEN);
+            } catch (NoSuchElementException e) {
+                continue; // reported when the filters are applied
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            double sel = s.estimateSelectivity(field, lf.p, c);
+            IndexPredicate ipred = new IndexPredicate(lf.p, c);
+            AccessPath path;
+            SecondaryIndex index;
+            if (field == keyField) {
+                path = btreePath(t, table, lf, ipred,
+                        TableStats.IOCOSTPERPAGE + sel * seqCost, wantOrder);
+            } else if (file instanceof HeapFile
+                    && (index = Database.getCatalog().getIndex(table.t, field)) != null) {
+                path = new AccessPath();
+                path.scan = new SecondaryIndexScan(t, index, table.alias, ipred);
+                path.filter = lf;
+                path.cost = TableStats.IOCOSTPERPAGE
+                        + sel * s.totalTuples() * TableStats.IOCOSTPERPAGE;
+                path.description = "secondary index scan on " + lf.fieldQuantifiedName;
+            } else {
+                continue;
+            }
+            if (best == null || path.cost < best.cost
+                    || (path.cost == best.cost && path.ordered && !best.ordered))
+                best = path;
+        }
+
+        if (best != null && best.cost > seqCost)
+            best = null;
+        if (explain) {
+            System.out.println("Access path of " + table.alias + ": "
+                    + (best == null ? "sequential scan" : best.description)
+                    + " (cost " + (best == null ? seqCost : best.cost)
+                    + ", sequential scan " + seqCost + ")");
+        }
+        return best;
+    }
+
+    /**
+     * Helper function of chooseAccessPath
+     * A scan of a BTreeFile table, reversed when it provides a descending
+     * ORDER BY.
+     */
+    private AccessPath btreePath(TransactionId t, LogicalScanNode table, LogicalFilterNode lf,
+            IndexPredicate ipred, double cost, boolean ordered) {
+        AccessPath path = new AccessPath();
+        if (ordered && !oByAsc)
+            path.scan = new BTreeReverseScan(t, table.t, table.alias, ipred);
+        else
+            path.scan = new BTreeScan(t, table.t, table.alias, ipred);
+        path.filter = lf;
+        path.ordered = ordered;
+        path.cost = cost;
+        path.description = (ordered && !oByAsc ? "reverse " : "") + "index scan"
+                + (lf == null ? "" : " on " + lf.fieldQuantifiedName);
+        return path;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
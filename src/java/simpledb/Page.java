@@ -53,7 +53,9 @@ public interface Page {
 
     /*
      * a transaction that wrote this page just committed it.
-     * copy current content to the before image.
+     * the current content becomes the before image.  Pages copy their
+     * content to the before image when they are next changed, so that
+     * pages that are only read never hold a copy.
      */
     public void setBeforeImage();
 }
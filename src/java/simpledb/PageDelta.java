@@ -0,0 +1,174 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * PageDelta is the difference between two images of a page, as the list of
+ * byte ranges that changed.  Each range keeps both its old and its new
+ * bytes, so a delta can be redone over the old image and undone over the
+ * new one.
+ * <p>
+ * The log stores deltas instead of whole page images.  Inserting or
+ * deleting a tuple on a HeapPage only changes a header byte and the bytes of
+ * one slot, and an update of a BTreeLeafPage only the entries it shifted, so
+ * a delta is usually a small fraction of the page size.
+ */
+public class PageDelta {
+
+    /**
+     * Changed ranges separated by at most this many unchanged bytes are
+     * merged into one range: logging the gap twice is cheaper than the
+     * offset and length of another range.
+     */
+    static final int MAX_GAP = 4;
+
+    private final int[] offsets;
+    private final byte[][] oldBytes;
+    private final byte[][] newBytes;
+
+    private PageDelta(int[] offsets, byte[][] oldBytes, byte[][] newBytes) {
+        this.offsets = offsets;
+        this.oldBytes = oldBytes;
+        this.newBytes = newBytes;
+    }
+
+    /**
+     * Compute the delta between two images of a page
+     * @param before the old image
+     * @param after the new image
+     * @throws IllegalArgumentException if the images differ in size
+     */
+    public static PageDelta diff(byte[] before, byte[] after) {
+        if (before.length != after.length)
+            throw new IllegalArgumentException("page images differ in size");
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int n = before.length;
+        int i = 0;
+        while (i < n) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            int j = end;
+            while (j < n && j <= end + MAX_GAP) {
+                if (before[j] != after[j])
+                    end = j + 1;
+                j++;
+            }
+            ranges.add(new int[] { start, end });
+            i = j;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] oldBytes = new byte[ranges.size()][];
+        byte[][] newBytes = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int len = ranges.get(r)[1] - start;
+            offsets[r] = start;
+            oldBytes[r] = new byte[len];
+            newBytes[r] = new byte[len];
+            System.arraycopy(before, start, oldBytes[r], 0, len);
+            System.arraycopy(after, start, newBytes[r], 0, len);
+        }
+        return new PageDelta(offsets, oldBytes, newBytes);
+    }
+
+    /** @return true if the two images were identical */
+    public boolean isEmpty() {
+        return offsets.length == 0;
+    }
+
+    /** @return the number of changed ranges */
+    public int numRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of bytes covered by the changed ranges */
+    public int changedBytes() {
+        int total = 0;
+        for (byte[] b : newBytes)
+            total += b.length;
+        return total;
+    }
+
+    /** Apply the new bytes of every range to the specified page image. */
+    public void redo(byte[] page) {
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(newBytes[r], 0, page, offsets[r], newBytes[r].length);
+    }
+
+    /** Apply the old bytes of every range to the specified page image. */
+    public void undo(byte[] page) {
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(oldBytes[r], 0, page, offsets[r], oldBytes[r].length);
+    }
+
+    /**
+     * Write the delta: the number of ranges, and for each range its offset,
+     * its length, its old bytes and its new bytes.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(oldBytes[r].length);
+            out.write(oldBytes[r]);
+            out.write(newBytes[r]);
+        }
+    }
+
+    /** @return the number of bytes {@link #write} writes */
+    public int encodedSize() {
+        return Integer.BYTES + offsets.length * 2 * Integer.BYTES + 2 * changedBytes();
+    }
+
+    /** Write the delta to a buffer, in the format of {@link #write(DataOutput)}. */
+    public void write(ByteBuffer out) {
+        out.putInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.putInt(offsets[r]);
+            out.putInt(oldBytes[r].length);
+            out.put(oldBytes[r]);
+            out.put(newBytes[r]);
+        }
+    }
+
+    /** Read a delta from a buffer. */
+    public static PageDelta read(ByteBuffer in) {
+        int numRanges = in.getInt();
+        int[] offsets = new int[numRanges];
+        byte[][] oldBytes = new byte[numRanges][];
+        byte[][] newBytes = new byte[numRanges][];
+        for (int r = 0; r < numRanges; r++) {
+            offsets[r] = in.getInt();
+            int len = in.getInt();
+            oldBytes[r] = new byte[len];
+            newBytes[r] = new byte[len];
+            in.get(oldBytes[r]);
+            in.get(newBytes[r]);
+        }
+        return new PageDelta(offsets, oldBytes, newBytes);
+    }
+
+    /** Read a delta written by {@link #write}. */
+    public static PageDelta read(DataInput in) throws IOException {
+        int numRanges = in.readInt();
+        int[] offsets = new int[numRanges];
+        byte[][] oldBytes = new byte[numRanges][];
+        byte[][] newBytes = new byte[numRanges][];
+        for (int r = 0; r < numRanges; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            oldBytes[r] = new byte[len];
+            newBytes[r] = new byte[len];
+            in.readFully(oldBytes[r]);
+            in.readFully(newBytes[r]);
+        }
+        return new PageDelta(offsets, oldBytes, newBytes);
+    }
+}
@@ -0,0 +1,304 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PageTable maps the PageIds of resident pages to the frames of the
+ * BufferPool.  The table is split into a fixed number of shards, each a hash
+ * map guarded by its own lock, so lookups of unrelated pages do not contend
+ * with each other.
+ * <p>
+ * Every frame carries a pin count.  A pinned frame is in use by an operator
+ * or by the BufferPool itself and must not be evicted.
+ * <p>
+ * A frame can also be marked unwritten: its page holds committed changes
+ * that are in the log but not yet on disk (NO-FORCE), so it must be written
+ * back before it is evicted even though no transaction has it dirty.  The
+ * recLSN of an unwritten frame is the LSN of the oldest log record whose
+ * changes may not be on disk; the frames with a recLSN form the dirty page
+ * table of a checkpoint.
+ *
+ * @see BufferPool
+ */
+class PageTable {
+
+    /** Default number of shards; must be a power of two. */
+    static final int DEFAULT_SHARDS = 16;
+
+    /** A slot of the buffer pool holding one resident page. */
+    static class Frame {
+        Page page;
+        int pinCount;
+        boolean unwritten;
+        long recLSN;
+        long pageLSN;
+        // incremented whenever the frame is marked unwritten, to detect
+        // changes logged while the page was being written
+        long version;
+
+        Frame(Page page) {
+            this.page = page;
+            this.pinCount = 0;
+            this.unwritten = false;
+            this.recLSN = -1;
+            this.pageLSN = -1;
+            this.version = 0;
+        }
+    }
+
+    private final HashMap<PageId, Frame>[] shards;
+    private final AtomicInteger size;
+
+    PageTable() {
+        this(DEFAULT_SHARDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    PageTable(int numShards) {
+        if (Integer.bitCount(numShards) != 1)
+            throw new IllegalArgumentException("number of shards must be a power of two");
+        shards = (HashMap<PageId, Frame>[]) new HashMap[numShards];
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new HashMap<PageId, Frame>();
+        size = new AtomicInteger(0);
+    }
+
+    private HashMap<PageId, Frame> shardOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (shards.length - 1)];
+    }
+
+    /** @return the number of resident pages */
+    int size() {
+        return size.get();
+    }
+
+    /** @return the resident page with the specified id, or null */
+    Page get(PageId pid) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            return frame == null ? null : frame.page;
+        }
+    }
+
+    /**
+     * Pin and return the resident page with the specified id.
+     * @return the page, or null (and nothing pinned) if it is not resident
+     */
+    Page getAndPin(PageId pid) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            if (frame == null) return null;
+            frame.pinCount++;
+            return frame.page;
+        }
+    }
+
+    /**
+     * Install the page in a new frame unless another thread has already
+     * loaded the same page.
+     * @param pin whether to pin the resulting frame
+     * @return the page that is resident after the call
+     */
+    Page putIfAbsent(Page page, boolean pin) {
+        PageId pid = page.getId();
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            if (frame == null) {
+                frame = new Frame(page);
+                shard.put(pid, frame);
+                size.incrementAndGet();
+            }
+            if (pin) frame.pinCount++;
+            return frame.page;
+        }
+    }
+
+    /**
+     * Install the page, replacing the contents of its frame if the page is
+     * already resident.  The pin count of an existing frame is kept.
+     * @return true if a new frame was created
+     */
+    boolean put(Page page) {
+        PageId pid = page.getId();
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            if (frame != null) {
+                frame.page = page;
+                return false;
+            }
+            shard.put(pid, new Frame(page));
+            size.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Release one pin on the specified page.
+     * @return false if the page is not resident or not pinned
+     */
+    boolean unpin(PageId pid) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            if (frame == null || frame.pinCount == 0) return false;
+            frame.pinCount--;
+            return true;
+        }
+    }
+
+    /** @return the pin count of the specified page, 0 if it is not resident */
+    int getPinCount(PageId pid) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            return frame == null ? 0 : frame.pinCount;
+        }
+    }
+
+    /**
+     * Mark the specified page as holding changes that are in the log but
+     * not yet on disk.
+     * @param lsn the LSN of the log record of the changes, or -1 if the
+     *     changes are already on disk in another form and only the page
+     *     must be written back; the recLSN of the page is only set if it
+     *     has none yet
+     * @return false if the page is not resident
+     */
+    boolean markUnwritten(PageId pid, long lsn) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            if (frame == null) return false;
+            frame.unwritten = true;
+            frame.version++;
+            if (lsn >= 0 && frame.recLSN < 0) frame.recLSN = lsn;
+            if (lsn > frame.pageLSN) frame.pageLSN = lsn;
+            return true;
+        }
+    }
+
+    /**
+     * Start writing back the specified page.
+     * @return a version to pass to {@link #finishWrite} once the page is
+     *     written, or -1 if the page is not resident or not unwritten
+     */
+    long startWrite(PageId pid) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            if (frame == null || !frame.unwritten) return -1;
+            return frame.version;
+        }
+    }
+
+    /**
+     * Clear the unwritten mark and the recLSN of a page that was written,
+     * unless the page was marked unwritten again while it was written.
+     * @param version the value returned by {@link #startWrite}
+     */
+    void finishWrite(PageId pid, long version) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            if (frame == null || frame.version != version) return;
+            frame.unwritten = false;
+            frame.recLSN = -1;
+        }
+    }
+
+    /**
+     * @return the LSN of the last log record of the specified page, or -1
+     *     if the page is not resident or was not logged since it was read
+     */
+    long getPageLSN(PageId pid) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            return frame == null ? -1 : frame.pageLSN;
+        }
+    }
+
+    /**
+     * @return the dirty page table: the recLSN of every resident page that
+     *     has one, taken shard by shard
+     */
+    Map<PageId, Long> dirtyPageTable() {
+        HashMap<PageId, Long> ret = new HashMap<PageId, Long>();
+        for (HashMap<PageId, Frame> shard : shards) {
+            synchronized (shard) {
+                for (Map.Entry<PageId, Frame> e : shard.entrySet()) {
+                    if (e.getValue().recLSN >= 0)
+                        ret.put(e.getKey(), e.getValue().recLSN);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /** @return true if the specified page is resident and marked unwritten */
+    boolean isUnwritten(PageId pid) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            return frame != null && frame.unwritten;
+        }
+    }
+
+    /**
+     * Remove the specified page if it is neither pinned, dirty nor unwritten.
+     * @return the removed page, or null if the page could not be evicted
+     */
+    Page removeIfEvictable(PageId pid) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.get(pid);
+            if (frame == null || frame.pinCount > 0 || frame.unwritten
+                    || frame.page.isDirty() != null)
+                return null;
+            shard.remove(pid);
+            size.decrementAndGet();
+            return frame.page;
+        }
+    }
+
+    /**
+     * Remove the specified page regardless of its state.
+     * @return the removed page, or null if it was not resident
+     */
+    Page remove(PageId pid) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.remove(pid);
+            if (frame == null) return null;
+            size.decrementAndGet();
+            return frame.page;
+        }
+    }
+
+    /** @return true if the specified page is resident */
+    boolean contains(PageId pid) {
+        HashMap<PageId, Frame> shard = shardOf(pid);
+        synchronized (shard) {
+            return shard.containsKey(pid);
+        }
+    }
+
+    /** @return a snapshot of the resident pages, taken shard by shard */
+    List<Page> pages() {
+        ArrayList<Page> ret = new ArrayList<Page>(size.get());
+        for (HashMap<PageId, Frame> shard : shards) {
+            synchronized (shard) {
+                for (Frame frame : shard.values())
+                    ret.add(frame.page);
+            }
+        }
+        return ret;
+    }
+}
@@ -104,6 +104,10 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
+        // compare int fields without decoding them into IntFields
+        if(now_operand instanceof IntField&&t.getTupleDesc().getFieldType(now_field)==Type.INT_TYPE){
+            return IntField.compare(t.getInt(now_field),now_op,((IntField)now_operand).getValue());
+        }
         return t.getField(now_field).compare(now_op,now_operand);
     }
 
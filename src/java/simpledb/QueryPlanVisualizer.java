@@ -13,6 +13,8 @@ public class QueryPlanVisualizer {
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index_scan";
+    static final String REVERSE_INDEX_SCAN = "reverse_index_scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -65,24 +67,41 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
-//            TupleDesc td = s.getTupleDesc();
+        if (!(queryPlan instanceof Operator)) {
+            // a scan: SeqScan, BTreeScan, BTreeReverseScan or SecondaryIndexScan
+            String scan = SCAN;
+            String tableName;
+            String alias;
+            if (queryPlan instanceof BTreeScan) {
+                scan = INDEX_SCAN;
+                tableName = ((BTreeScan) queryPlan).getTableName();
+                alias = ((BTreeScan) queryPlan).getAlias();
+            } else if (queryPlan instanceof BTreeReverseScan) {
+                scan = REVERSE_INDEX_SCAN;
+                tableName = ((BTreeReverseScan) queryPlan).getTableName();
+                alias = ((BTreeReverseScan) queryPlan).getAlias();
+            } else if (queryPlan instanceof SecondaryIndexScan) {
+                scan = INDEX_SCAN;
+                tableName = ((SecondaryIndexScan) queryPlan).getTableName();
+                alias = ((SecondaryIndexScan) queryPlan).getAlias();
+            } else {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            }
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
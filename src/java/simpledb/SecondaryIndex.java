@@ -0,0 +1,215 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * SecondaryIndex is a B+ tree index on a field of a {@link HeapFile} table.
+ * <p>
+ * The index is a {@link BTreeFile} of entries (key, page, slot), keyed on
+ * the first field, where page and slot locate the indexed tuple in the heap
+ * file.  Entries with equal keys are ordered by page and slot when the index
+ * is built.  Once the index is added to the catalog with
+ * {@link Catalog#addIndex}, BufferPool.insertTuple and deleteTuple keep it
+ * up to date, in the same transaction as the change to the table.  Heap
+ * tuples never move, so an entry stays valid until its tuple is deleted.
+ * <p>
+ * Use {@link SecondaryIndexScan} to read the tuples of the table matching
+ * a predicate on the indexed field.
+ */
+public class SecondaryIndex {
+
+    /** Fill factor of the pages of an index built by {@link #create} */
+    public static final double DEFAULT_FILL_FACTOR = 0.8;
+
+    private final int tableid;
+    private final int field;
+    private final BTreeFile file;
+
+    /**
+     * Open an existing index file.
+     *
+     * @param tableid the id of the heap file table the index is on
+     * @param field the index of the indexed field
+     * @param f the file of the index
+     * @throws IllegalArgumentException if the table is not a heap file
+     */
+    public SecondaryIndex(int tableid, int field, File f) {
+        DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(table instanceof HeapFile))
+            throw new IllegalArgumentException("secondary indexes are only supported on heap files");
+        this.tableid = tableid;
+        this.field = field;
+        this.file = new BTreeFile(f, 0, entryDesc(table.getTupleDesc().getFieldType(field)));
+    }
+
+    /**
+     * Build a new index on a field of a heap file table, with pages filled
+     * to {@link #DEFAULT_FILL_FACTOR}.  The entries are bulk loaded from a
+     * scan of the table in a transaction of its own, which only reads it.
+     *
+     * @param tableid the id of the heap file table to index
+     * @param field the index of the field to index
+     * @param f the file of the index, overwritten
+     * @return the index, which still has to be added to the catalog
+     */
+    public static SecondaryIndex create(int tableid, int field, File f)
+            throws DbException, IOException, TransactionAbortedException {
+        return create(tableid, field, f, DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * Build a new index on a field of a heap file table.
+     *
+     * @param fillFactor the fraction of each index page to fill, in (0, 1]
+     * @see #create(int, int, File)
+     */
+    public static SecondaryIndex create(int tableid, int field, File f, double fillFactor)
+            throws DbException, IOException, TransactionAbortedException {
+        SecondaryIndex index = new SecondaryIndex(tableid, field, f);
+        TransactionId tid = new TransactionId();
+        try {
+            BTreeFileEncoder.bulkLoadFile(index.new EntryIterator(new SeqScan(tid, tableid)),
+                    f, 0, fillFactor);
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return index;
+    }
+
+    /**
+     * @return the description of the entries of an index on a field of the
+     * specified type
+     */
+    public static TupleDesc entryDesc(Type keyType) {
+        return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "key", "page", "slot" });
+    }
+
+    /** @return the id of the table the index is on */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the index of the indexed field */
+    public int getField() {
+        return field;
+    }
+
+    /** @return the B+ tree file holding the entries */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /** @return the id of the B+ tree file holding the entries */
+    public int getId() {
+        return file.getId();
+    }
+
+    /**
+     * @return the entry of a tuple of the table, which must have a RecordId
+     */
+    public Tuple entry(Tuple t) {
+        return entry(t.getField(field), t.getRecordId());
+    }
+
+    private Tuple entry(Field key, RecordId rid) {
+        Tuple e = new Tuple(file.getTupleDesc());
+        e.setField(0, key);
+        e.setField(1, new IntField(rid.getPageId().getPageNumber()));
+        e.setField(2, new IntField(rid.getTupleNumber()));
+        return e;
+    }
+
+    /**
+     * @return the RecordId of the tuple of the table an entry points at
+     */
+    public RecordId recordId(Tuple entry) {
+        return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(1)).getValue()),
+                ((IntField) entry.getField(2)).getValue());
+    }
+
+    /**
+     * Add the entry of a tuple just inserted into the table.
+     *
+     * @param tid the transaction inserting the tuple
+     * @param t the tuple, with its RecordId
+     */
+    public void insert(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, getId(), entry(t));
+    }
+
+    /**
+     * Remove the entry of a tuple deleted from the table.
+     *
+     * @param tid the transaction deleting the tuple
+     * @param key the value of the indexed field of the tuple
+     * @param rid where the tuple was stored
+     * @throws DbException if the index has no entry for the tuple
+     */
+    public void delete(TransactionId tid, Field key, RecordId rid)
+            throws DbException, IOException, TransactionAbortedException {
+        int page = rid.getPageId().getPageNumber();
+        Tuple found = null;
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        try {
+            while (found == null && it.hasNext()) {
+                Tuple e = it.next();
+                if (((IntField) e.getField(1)).getValue() == page
+                        && ((IntField) e.getField(2)).getValue() == rid.getTupleNumber())
+                    found = e;
+            }
+        } finally {
+            it.close();
+        }
+        if (found == null)
+            throw new DbException("index has no entry for " + rid);
+        Database.getBufferPool().deleteTuple(tid, found);
+    }
+
+    /** Turns the tuples of a scan of the table into index entries */
+    private class EntryIterator extends Operator {
+        private static final long serialVersionUID = 1L;
+        private OpIterator child;
+
+        EntryIterator(OpIterator child) {
+            this.child = child;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return file.getTupleDesc();
+        }
+
+        public void open() throws DbException, NoSuchElementException,
+                TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            return child.hasNext() ? entry(child.next()) : null;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[] { child };
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+            child = children[0];
+        }
+    }
+}
@@ -118,6 +118,7 @@ public class SeqScan implements OpIterator {
 
     public void close() {
         // some code goes here
+        if(it!=null) it.close();
         it=null;
     }
 
@@ -47,8 +47,9 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //log the dirty pages of this transaction; the pages are
+                //written back lazily, only the log is forced (NO-FORCE)
+                Database.getBufferPool().logDirtyPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
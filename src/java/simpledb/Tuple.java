@@ -1,6 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -10,14 +13,22 @@ import java.util.List;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may instead be backed by the data of the page:
+ * its fields are then decoded when they are first read, and
+ * {@link #getInt} reads integer fields without creating Field objects.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
     private RecordId tuple_recid;
-    private List<Field> field_list;
+    private Field[] field_list;
     private TupleDesc tuple_tdesc;
 
+    // the data the fields not decoded yet are read from, null if none
+    private transient byte[] backing_data;
+    private transient int backing_offset;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -27,13 +38,39 @@ public class Tuple implements Serializable {
      */
     public Tuple(TupleDesc td) {
         // some code goes here
-        field_list=new ArrayList<>();
+        field_list=new Field[td.numFields()];
         tuple_tdesc=td;
-        for(int i=0;i<tuple_tdesc.numFields();i++){
-            Field field_temp=null;
-            //System.out.println(tuple_tdesc.numFields());
-            field_list.add(field_temp);
-        }
+    }
+
+    /**
+     * Create a tuple whose fields are stored, in the format of
+     * {@link Field#serialize}, in the specified data from the specified
+     * offset on.  The data must not change while the tuple is used.
+     */
+    Tuple(TupleDesc td, byte[] data, int offset) {
+        this(td);
+        backing_data=data;
+        backing_offset=offset;
+    }
+
+    /**
+     * Helper function of getField and getInt
+     * The offset of the ith field in the backing data.
+     */
+    private int offsetOf(int i) {
+        int offset=backing_offset;
+        for(int j=0;j<i;j++) offset+=tuple_tdesc.getFieldType(j).getLen();
+        return offset;
+    }
+
+    /**
+     * Helper function of the methods that need every field
+     * Decode the fields that were not read yet, and drop the backing data.
+     */
+    private void decodeAll() {
+        if(backing_data==null) return;
+        for(int i=0;i<field_list.length;i++) getField(i);
+        backing_data=null;
     }
 
     /**
@@ -74,7 +111,7 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        field_list.set(i,f);
+        field_list[i]=f;
     }
 
     /**
@@ -85,7 +122,32 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return field_list.get(i);
+        Field f=field_list[i];
+        if(f==null&&backing_data!=null){
+            ByteBuffer buf=ByteBuffer.wrap(backing_data);
+            buf.position(offsetOf(i));
+            f=tuple_tdesc.getFieldType(i).parse(buf);
+            field_list[i]=f;
+        }
+        return f;
+    }
+
+    /**
+     * @return the value of the ith field, which must be an integer field.
+     *   A field that was not decoded yet is read from the backing data
+     *   without creating an IntField, e.g. to evaluate a predicate.
+     *
+     * @param i
+     *            field index to return. Must be a valid index.
+     */
+    public int getInt(int i) {
+        Field f=field_list[i];
+        if(f==null&&backing_data!=null&&tuple_tdesc.getFieldType(i)==Type.INT_TYPE){
+            int o=offsetOf(i);
+            return ((backing_data[o]&0xff)<<24)|((backing_data[o+1]&0xff)<<16)
+                |((backing_data[o+2]&0xff)<<8)|(backing_data[o+3]&0xff);
+        }
+        return ((IntField)getField(i)).getValue();
     }
 
     /*i added myself to help BufferPool.java*/
@@ -93,7 +155,9 @@ public class Tuple implements Serializable {
         boolean flag=true;
         if(!this.tuple_tdesc.equals(c_t.getTupleDesc())) flag=false;
         if(!this.tuple_recid.equals(c_t.getRecordId())) flag=false;
-        if(!this.field_list.equals(c_t.field_list)) flag=false;
+        this.decodeAll();
+        c_t.decodeAll();
+        if(!Arrays.equals(this.field_list,c_t.field_list)) flag=false;
         return flag;
     }
 
@@ -110,7 +174,7 @@ public class Tuple implements Serializable {
         // System.out.println(1);
         String str_ret="";
         for(int i=0;i<tuple_tdesc.numFields();i++){
-            str_ret+=field_list.get(i);
+            str_ret+=getField(i);
             if(i!=tuple_tdesc.numFields()-1) str_ret+="\t";
         }
         return str_ret;
@@ -125,7 +189,8 @@ public class Tuple implements Serializable {
     {
         // some code goes here
         //System.out.println(1);
-        return field_list.iterator();
+        decodeAll();
+        return Arrays.asList(field_list).iterator();
     }
 
     /**
@@ -134,7 +199,14 @@ public class Tuple implements Serializable {
     public void resetTupleDesc(TupleDesc td)
     {
         // some code goes here
+        // the backing data is laid out by the old TupleDesc
+        decodeAll();
         tuple_tdesc=td;
         //System.out.println(1);
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        decodeAll();
+        out.defaultWriteObject();
+    }
 }
@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * WaitsForGraph is the waits-for graph of the lock manager.  There is an
+ * edge from transaction A to transaction B while A waits for a lock that B
+ * holds, or that B requested before A.
+ * <p>
+ * The graph is maintained incrementally: whenever the set of transactions a
+ * waiter is blocked by changes, only the edges of that waiter are updated.
+ * A cycle search starts from a single transaction and only visits the part
+ * of the graph reachable from it, so its cost does not depend on the number
+ * of unrelated waiting transactions.
+ *
+ * @Threadsafe
+ */
+public class WaitsForGraph {
+
+    // waiter -> transactions it waits for
+    private final HashMap<TransactionId, Set<TransactionId>> out;
+    // transaction -> waiters waiting for it
+    private final HashMap<TransactionId, Set<TransactionId>> in;
+
+    public WaitsForGraph() {
+        out = new HashMap<TransactionId, Set<TransactionId>>();
+        in = new HashMap<TransactionId, Set<TransactionId>>();
+    }
+
+    /**
+     * Replace the outgoing edges of the specified waiter.
+     * @param waiter the waiting transaction
+     * @param blockers the transactions it now waits for
+     */
+    public synchronized void setEdges(TransactionId waiter, Set<TransactionId> blockers) {
+        Set<TransactionId> old = out.get(waiter);
+        if (old != null) {
+            for (TransactionId t : old) {
+                if (!blockers.contains(t)) removeIn(t, waiter);
+            }
+        }
+        if (blockers.isEmpty()) {
+            out.remove(waiter);
+            return;
+        }
+        Set<TransactionId> edges = new HashSet<TransactionId>(blockers);
+        for (TransactionId t : edges) {
+            if (old == null || !old.contains(t)) {
+                Set<TransactionId> waiters = in.get(t);
+                if (waiters == null) {
+                    waiters = new HashSet<TransactionId>();
+                    in.put(t, waiters);
+                }
+                waiters.add(waiter);
+            }
+        }
+        out.put(waiter, edges);
+    }
+
+    /**
+     * Remove the outgoing edges of the specified transaction, e.g. because
+     * it was granted its lock or gave up waiting.
+     */
+    public synchronized void removeWaiter(TransactionId waiter) {
+        Set<TransactionId> old = out.remove(waiter);
+        if (old == null) return;
+        for (TransactionId t : old) removeIn(t, waiter);
+    }
+
+    private void removeIn(TransactionId t, TransactionId waiter) {
+        Set<TransactionId> waiters = in.get(t);
+        if (waiters == null) return;
+        waiters.remove(waiter);
+        if (waiters.isEmpty()) in.remove(t);
+    }
+
+    /** @return the transactions the specified waiter waits for */
+    public synchronized Set<TransactionId> getBlockers(TransactionId waiter) {
+        Set<TransactionId> edges = out.get(waiter);
+        if (edges == null) return Collections.emptySet();
+        return new HashSet<TransactionId>(edges);
+    }
+
+    /** @return the transactions that wait for the specified transaction */
+    public synchronized Set<TransactionId> getWaiters(TransactionId tid) {
+        Set<TransactionId> waiters = in.get(tid);
+        if (waiters == null) return Collections.emptySet();
+        return new HashSet<TransactionId>(waiters);
+    }
+
+    /** @return a snapshot of all waiting transactions */
+    public synchronized List<TransactionId> waiters() {
+        return new ArrayList<TransactionId>(out.keySet());
+    }
+
+    /**
+     * Search for a cycle through the specified transaction.
+     * @return the transactions on the cycle, starting with start, or null
+     *   if start is not part of a cycle
+     */
+    public synchronized List<TransactionId> findCycle(TransactionId start) {
+        // iterative depth first search, keeping the current path so that
+        // the cycle can be returned
+        HashSet<TransactionId> visited = new HashSet<TransactionId>();
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        ArrayList<Iterator<TransactionId>> pending = new ArrayList<Iterator<TransactionId>>();
+        Set<TransactionId> first = out.get(start);
+        if (first == null) return null;
+        path.add(start);
+        pending.add(first.iterator());
+        visited.add(start);
+        while (!pending.isEmpty()) {
+            Iterator<TransactionId> it = pending.get(pending.size() - 1);
+            if (!it.hasNext()) {
+                pending.remove(pending.size() - 1);
+                path.remove(path.size() - 1);
+                continue;
+            }
+            TransactionId next = it.next();
+            if (next.equals(start)) return new ArrayList<TransactionId>(path);
+            if (!visited.add(next)) continue;
+            Set<TransactionId> edges = out.get(next);
+            if (edges == null) continue;
+            path.add(next);
+            pending.add(edges.iterator());
+        }
+        return null;
+    }
+}
@@ -201,6 +201,34 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * An index search keeps its lock on the leaf page it reads, but not on
+	 * the root pointer page and the internal pages it went through, so that
+	 * other transactions can still change them.
+	 */
+	@Test public void indexIteratorLockCoupling() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520,
+				null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		DbFileIterator it = twoLeafPageFile.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, new IntField(5)));
+		it.open();
+		assertTrue(it.hasNext());
+		PageId leafId = it.next().getRecordId().getPageId();
+		it.close();
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(twoLeafPageFile.getId());
+		assertTrue(bp.holdsLock(tid, leafId));
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+
+		TransactionId other = new TransactionId();
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(other, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertFalse(bp.holdsLock(tid, rootId));
+		bp.getPage(other, rootId, Permissions.READ_WRITE);
+		bp.transactionComplete(other);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
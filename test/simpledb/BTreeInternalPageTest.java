@@ -313,6 +313,52 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * The child to descend to, found by going through the entries in order
+	 */
+	private static BTreePageId scanChildId(BTreeInternalPage page, Field f, boolean last) {
+		BTreeEntry prev = null;
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (!last && e.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+				return e.getLeftChild();
+			if (last && e.getKey().compare(Predicate.Op.GREATER_THAN, f))
+				return e.getLeftChild();
+			prev = e;
+		}
+		return prev.getRightChild();
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChildId() and findLastChildId()
+	 */
+	@Test public void findChildId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		LinkedList<BTreeEntry> entries = new LinkedList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		assertEquals(entries.getFirst().getLeftChild(), page.findChildId(null));
+		assertEquals(entries.getLast().getRightChild(), page.findLastChildId(null));
+
+		// delete some entries so that the used slots have gaps
+		for (int round = 0; round < 3; round++) {
+			for (int v = 0; v < 70000; v += 997) {
+				IntField f = new IntField(v);
+				assertEquals(scanChildId(page, f, false), page.findChildId(f));
+				assertEquals(scanChildId(page, f, true), page.findLastChildId(f));
+			}
+			for (int[] entry : EXAMPLE_VALUES) {
+				IntField f = new IntField(entry[1]);
+				assertEquals(scanChildId(page, f, false), page.findChildId(f));
+				assertEquals(scanChildId(page, f, true), page.findLastChildId(f));
+			}
+			page.deleteKeyAndRightChild(entries.remove(entries.size() / 2));
+			page.deleteKeyAndLeftChild(entries.remove(1));
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -336,6 +336,49 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.lowerBound() and upperBound()
+	 */
+	@Test public void lowerAndUpperBound() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{ 22064, 1 }));
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{ 22064, 2 }));
+		page.deleteTuple(page.iterator().next());
+
+		for (int[] tuple : EXAMPLE_VALUES)
+			checkBounds(page, new IntField(tuple[0]));
+		for (int v = 0; v < 70000; v += 499)
+			checkBounds(page, new IntField(v));
+	}
+
+	/**
+	 * Check that iterating from the bounds of f returns exactly the tuples
+	 * greater than or equal to, and greater than, f.
+	 */
+	private static void checkBounds(BTreeLeafPage page, IntField f) {
+		int geq = 0, gt = 0;
+		Iterator<Tuple> it = page.iterator();
+		while (it.hasNext()) {
+			Field key = it.next().getField(0);
+			if (key.compare(Predicate.Op.GREATER_THAN_OR_EQ, f)) geq++;
+			if (key.compare(Predicate.Op.GREATER_THAN, f)) gt++;
+		}
+		int n = 0;
+		it = page.iterator(page.lowerBound(f));
+		while (it.hasNext()) {
+			assertTrue(it.next().getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f));
+			n++;
+		}
+		assertEquals(geq, n);
+		n = 0;
+		it = page.reverseIterator(page.upperBound(f));
+		while (it.hasNext()) {
+			assertTrue(it.next().getField(0).compare(Predicate.Op.LESS_THAN_OR_EQ, f));
+			n++;
+		}
+		assertEquals(page.getNumTuples() - gt, n);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
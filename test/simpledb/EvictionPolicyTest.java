@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * CLOCK gives a page that was accessed again a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy policy = new ClockEvictionPolicy();
+        policy.recordAccess(pid(0));
+        policy.recordAccess(pid(1));
+        policy.recordAccess(pid(2));
+        policy.recordAccess(pid(0));
+
+        Iterator<PageId> it = policy.evictionOrder();
+        assertEquals(pid(1), it.next());
+        assertEquals(pid(2), it.next());
+        assertEquals(pid(0), it.next());
+    }
+
+    /**
+     * CLOCK never offers pages that were removed, and offers every resident
+     * page at most twice before giving up.
+     */
+    @Test public void clockRemoval() {
+        EvictionPolicy policy = new ClockEvictionPolicy();
+        policy.recordAccess(pid(0));
+        policy.recordAccess(pid(1));
+        policy.recordRemoval(pid(0));
+
+        Iterator<PageId> it = policy.evictionOrder();
+        assertEquals(pid(1), it.next());
+        assertFalse(it.hasNext());
+
+        // the freed slot is reused
+        policy.recordAccess(pid(2));
+        it = policy.evictionOrder();
+        int count = 0;
+        while (it.hasNext()) {
+            assertFalse(pid(0).equals(it.next()));
+            count++;
+        }
+        assertEquals(2, count);
+    }
+
+    /**
+     * LRU-K evicts pages accessed fewer than K times before hot pages.
+     */
+    @Test public void lruKScanResistance() {
+        EvictionPolicy policy = new LRUKEvictionPolicy(2, 16);
+        policy.recordAccess(pid(0));
+        policy.recordAccess(pid(0));
+        for (int i = 1; i <= 3; i++)
+            policy.recordAccess(pid(i));
+
+        Iterator<PageId> it = policy.evictionOrder();
+        assertEquals(pid(1), it.next());
+        assertEquals(pid(2), it.next());
+        assertEquals(pid(3), it.next());
+        assertEquals(pid(0), it.next());
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * LRU-K remembers the history of evicted pages.
+     */
+    @Test public void lruKRetainedHistory() {
+        EvictionPolicy policy = new LRUKEvictionPolicy(2, 16);
+        policy.recordAccess(pid(0));
+        policy.recordAccess(pid(1));
+        policy.recordRemoval(pid(0));
+        policy.recordAccess(pid(0));
+
+        Iterator<PageId> it = policy.evictionOrder();
+        assertEquals(pid(1), it.next());
+        assertEquals(pid(0), it.next());
+    }
+
+    /**
+     * A hot page survives a sequential scan of a table much larger than the
+     * buffer pool.
+     */
+    @Test public void hotPageSurvivesScan() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512 * 20, null, null);
+        BufferPool bp = Database.resetBufferPool(4, new LRUKEvictionPolicy());
+        TransactionId tid = new TransactionId();
+        HeapPageId hot = new HeapPageId(f.getId(), 0);
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+        }
+        scan.close();
+
+        long misses = bp.getMissCount();
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+        assertEquals(misses, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,86 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+    private TupleDesc td;
+    private ArrayList<Tuple> tuples;
+
+    @Before public void setUp() {
+        td = Utility.getTupleDesc(2);
+        tuples = new ArrayList<Tuple>();
+        Random r = new Random(42);
+        // few distinct keys, and the second field numbers the input, so
+        // that stability can be checked
+        for (int i = 0; i < 1000; i++)
+            tuples.add(Utility.getTuple(new int[] { r.nextInt(50), i }, 2));
+    }
+
+    private void checkSorted(OpIterator it, boolean asc) throws Exception {
+        int count = 0;
+        Tuple prev = null;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (prev != null) {
+                int k1 = ((IntField) prev.getField(0)).getValue();
+                int k2 = ((IntField) t.getField(0)).getValue();
+                assertTrue(asc ? k1 <= k2 : k1 >= k2);
+                if (k1 == k2)
+                    assertTrue(((IntField) prev.getField(1)).getValue()
+                            < ((IntField) t.getField(1)).getValue());
+            }
+            prev = t;
+            count++;
+        }
+        assertEquals(tuples.size(), count);
+    }
+
+    /**
+     * Input that fits in one run is sorted in memory.
+     */
+    @Test public void inMemory() throws Exception {
+        ExternalSort sort = new ExternalSort(0, true, new TupleIterator(td, tuples));
+        sort.open();
+        assertEquals(0, sort.numRuns());
+        checkSorted(sort, true);
+        sort.close();
+    }
+
+    /**
+     * Runs spilled to disk are merged, in several passes when there are more
+     * than MERGE_FAN_IN of them, and the sort stays stable.
+     */
+    @Test public void spilledRuns() throws Exception {
+        ExternalSort sort = new ExternalSort(0, true, new TupleIterator(td, tuples), 7);
+        sort.open();
+        assertTrue(sort.numRuns() > 1);
+        assertTrue(sort.numRuns() <= ExternalSort.MERGE_FAN_IN);
+        checkSorted(sort, true);
+        sort.rewind();
+        checkSorted(sort, true);
+        sort.close();
+        assertEquals(0, sort.numRuns());
+
+        sort = new ExternalSort(0, false, new TupleIterator(td, tuples), 100);
+        sort.open();
+        checkSorted(sort, false);
+        sort.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExternalSortTest.class);
+    }
+}
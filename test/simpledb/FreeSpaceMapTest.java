@@ -0,0 +1,134 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FreeSpaceMapTest extends TestUtil.CreateHeapFile {
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        empty.getFreeSpaceMap().getFile().delete();
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.findPage()
+     */
+    @Test public void findPage() throws Exception {
+        File f = File.createTempFile("fsm", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap fsm = new FreeSpaceMap(f);
+        fsm.getFile().deleteOnExit();
+
+        // nothing is known, so every page may have space
+        assertEquals(0, fsm.findPage(0, 4));
+        assertEquals(-1, fsm.getFreeSlots(0));
+
+        fsm.update(0, 0);
+        fsm.update(1, 0);
+        fsm.update(2, 5);
+        assertEquals(2, fsm.findPage(0, 4));
+        assertEquals(3, fsm.findPage(3, 4));
+        assertEquals(-1, fsm.findPage(0, 2));
+        assertEquals(5, fsm.getFreeSlots(2));
+
+        fsm.update(1, 1);
+        assertEquals(1, fsm.findPage(0, 4));
+
+        // counts are capped
+        fsm.update(3, 1000);
+        assertEquals(FreeSpaceMap.MAX_COUNT, fsm.getFreeSlots(3));
+    }
+
+    /**
+     * Entries written with a page are read back by a new map.
+     */
+    @Test public void persisted() throws Exception {
+        File f = File.createTempFile("fsm", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap fsm = new FreeSpaceMap(f);
+        fsm.getFile().deleteOnExit();
+        fsm.write(0, 0);
+        fsm.write(3, 7);
+        fsm.update(1, 0); // not written
+
+        FreeSpaceMap reopened = new FreeSpaceMap(f);
+        assertEquals(0, reopened.getFreeSlots(0));
+        assertEquals(-1, reopened.getFreeSlots(1));
+        assertEquals(-1, reopened.getFreeSlots(2));
+        assertEquals(7, reopened.getFreeSlots(3));
+    }
+
+    /**
+     * An insert into a file whose first pages are full only locks the page
+     * the tuple goes to.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        // fill two pages, and start a third
+        for (int i = 0; i < 504 * 2 + 1; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 1)));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 2)));
+        assertEquals(FreeSpaceMap.MAX_COUNT, empty.getFreeSpaceMap().getFreeSlots(2));
+    }
+
+    /**
+     * An abort restores the free space the map records for the pages the
+     * transaction changed.
+     */
+    @Test public void abortRestoresFreeSpace() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId t1 = new TransactionId();
+        bp.insertTuple(t1, empty.getId(), Utility.getHeapTuple(0, 2));
+        bp.transactionComplete(t1);
+        assertEquals(FreeSpaceMap.MAX_COUNT, empty.getFreeSpaceMap().getFreeSlots(0));
+
+        // an aborted insert that filled the page
+        TransactionId t2 = new TransactionId();
+        for (int i = 0; i < 503; ++i)
+            bp.insertTuple(t2, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(-1, empty.getFreeSpaceMap().findPage(0, empty.numPages()));
+        bp.transactionComplete(t2, false);
+        assertEquals(0, empty.getFreeSpaceMap().findPage(0, empty.numPages()));
+        assertEquals(FreeSpaceMap.MAX_COUNT, empty.getFreeSpaceMap().getFreeSlots(0));
+
+        // an aborted delete from a full page
+        TransactionId t3 = new TransactionId();
+        Tuple last = null;
+        for (int i = 0; i < 503; ++i) {
+            last = Utility.getHeapTuple(i, 2);
+            bp.insertTuple(t3, empty.getId(), last);
+        }
+        bp.transactionComplete(t3);
+        assertEquals(-1, empty.getFreeSpaceMap().findPage(0, empty.numPages()));
+        bp.deleteTuple(tid, last);
+        assertEquals(0, empty.getFreeSpaceMap().findPage(0, empty.numPages()));
+        bp.transactionComplete(tid, false);
+        assertEquals(-1, empty.getFreeSpaceMap().findPage(0, empty.numPages()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -121,6 +121,63 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A mapped scan returns the same tuples as a scan through the buffer
+     * pool, without reading the pages into it, and still locks them.
+     */
+    @Test
+    public void testMappedScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 1200,
+                null, tuples);
+        threePageFile.setMappedScans(true);
+        long misses = Database.getBufferPool().getMissCount();
+
+        DbFileIterator it = threePageFile.iterator(tid);
+        it.open();
+        ArrayList<ArrayList<Integer>> seen = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            seen.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+
+        assertEquals(tuples, seen);
+        assertEquals(misses, Database.getBufferPool().getMissCount());
+        for (int i = 0; i < threePageFile.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(threePageFile.getId(), i);
+            assertTrue(Database.getBufferPool().holdsLock(tid, pid));
+            assertEquals(0, Database.getBufferPool().getPinCount(pid));
+        }
+    }
+
+    /**
+     * Repeated full scans leave no page pinned, whether or not the scan is
+     * closed before the transaction completes.
+     */
+    @Test
+    public void testScanReleasesPins() throws Exception {
+        HeapFile fourPageFile = SystemTestUtil.createRandomHeapFile(2, 1800,
+                null, null);
+        assertEquals(4, fourPageFile.numPages());
+        for (int i = 0; i < 3; i++) {
+            DbFileIterator it = fourPageFile.iterator(tid);
+            it.open();
+            while (it.hasNext())
+                it.next();
+            // finished, but not closed
+            for (int p = 0; p < fourPageFile.numPages(); p++)
+                assertEquals(0, Database.getBufferPool().getPinCount(
+                        new HeapPageId(fourPageFile.getId(), p)));
+
+            SeqScan scan = new SeqScan(tid, fourPageFile.getId(), "");
+            scan.open();
+            scan.next();
+            scan.close();
+            for (int p = 0; p < fourPageFile.numPages(); p++)
+                assertEquals(0, Database.getBufferPool().getPinCount(
+                        new HeapPageId(fourPageFile.getId(), p)));
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -43,6 +43,50 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.writePage(): pages written through the open
+     * channel are read back, and appending a page extends numPages().
+     */
+    @Test public void writePage() throws Exception {
+        HeapPageId pid = new HeapPageId(empty.getId(), 1);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        empty.writePage(page);
+        assertEquals(2, empty.numPages());
+        assertArrayEquals(page.getPageData(), empty.readPage(pid).getPageData());
+
+        // there is no page 2 yet, so page 3 cannot be written
+        try {
+            empty.writePage(new HeapPage(new HeapPageId(empty.getId(), 3),
+                    HeapPage.createEmptyPageData()));
+            fail("expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+        }
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * Unit test for extent growth: the file grows by several pages at once,
+     * and the unused ones are neither counted nor lost on reopening.
+     */
+    @Test public void extents() throws Exception {
+        empty.setExtentPages(4);
+        int pageSize = BufferPool.getPageSize();
+        for (int i = 0; i < 505; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        assertEquals(5 * pageSize, empty.getFile().length());
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(2, reopened.numPages());
+
+        // the next pages come from the extent, without growing the file
+        for (int i = 0; i < 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(3, empty.numPages());
+        assertEquals(5 * pageSize, empty.getFile().length());
+    }
+
     /**
      * JUnit suite target
      */
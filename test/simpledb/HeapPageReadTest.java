@@ -99,6 +99,31 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples read from a page give the same values through getInt, the
+     * predicates evaluated on them and getField, and an unchanged page
+     * returns its data as read.
+     */
+    @Test public void testLazyTuples() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+
+        int row = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertEquals(EXAMPLE_VALUES[row][1], tup.getInt(1));
+            assertTrue(new Predicate(0, Predicate.Op.EQUALS,
+                    new IntField(EXAMPLE_VALUES[row][0])).filter(tup));
+            assertFalse(new Predicate(1, Predicate.Op.LESS_THAN,
+                    new IntField(EXAMPLE_VALUES[row][1])).filter(tup));
+            assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(EXAMPLE_VALUES[row][1], tup.getInt(1));
+            row++;
+        }
+        assertEquals(EXAMPLE_VALUES.length, row);
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
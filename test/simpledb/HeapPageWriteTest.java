@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +127,28 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getBeforeImage() and setBeforeImage(): the
+     * before image keeps the content from before the first change, until
+     * setBeforeImage() makes the current content the before image.
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        page.insertTuple(Utility.getHeapTuple(2, 2));
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+
+        page.setBeforeImage();
+        byte[] committed = page.getPageData();
+        assertTrue(Arrays.equals(committed, page.getBeforeImage().getPageData()));
+
+        page.deleteTuple(page.iterator().next());
+        assertTrue(Arrays.equals(committed, page.getBeforeImage().getPageData()));
+        assertEquals(page.getBeforeImage().getNumEmptySlots(), page.getNumEmptySlots() - 1);
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,354 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final PageId PID = new HeapPageId(1, 0);
+    private static final PageId PID2 = new HeapPageId(1, 1);
+
+    /** Acquires a lock in a separate thread and counts down when granted. */
+    private static CountDownLatch acquireAsync(final LockManager lm, final TransactionId tid,
+            final Permissions perm) {
+        return acquireAsync(lm, tid, PID, perm, null);
+    }
+
+    /**
+     * Acquires a lock in a separate thread; counts down granted when the lock
+     * is granted, or aborted when the transaction is aborted.
+     */
+    private static CountDownLatch acquireAsync(final LockManager lm, final TransactionId tid,
+            final PageId pid, final Permissions perm, final CountDownLatch aborted) {
+        final CountDownLatch granted = new CountDownLatch(1);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    lm.acquireLock(tid, pid, perm);
+                    granted.countDown();
+                } catch (TransactionAbortedException e) {
+                    if (aborted != null) aborted.countDown();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return granted;
+    }
+
+    /**
+     * A shared request does not overtake an exclusive request queued before it.
+     */
+    @Test public void fifoQueue() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        TransactionId tid3 = new TransactionId();
+
+        lm.acquireLock(tid1, PID, Permissions.READ_ONLY);
+        CountDownLatch writer = acquireAsync(lm, tid2, Permissions.READ_WRITE);
+        assertFalse(writer.await(200, TimeUnit.MILLISECONDS));
+        CountDownLatch reader = acquireAsync(lm, tid3, Permissions.READ_ONLY);
+        assertFalse(reader.await(200, TimeUnit.MILLISECONDS));
+
+        lm.releaseLock(tid1, PID);
+        assertTrue(writer.await(1, TimeUnit.SECONDS));
+        assertFalse(reader.await(200, TimeUnit.MILLISECONDS));
+        lm.releaseAllLocks(tid2);
+        assertTrue(reader.await(1, TimeUnit.SECONDS));
+        assertEquals(Permissions.READ_ONLY, lm.getLockMode(tid3, PID));
+    }
+
+    /**
+     * An upgrade is granted as soon as the other shared holders are gone,
+     * ahead of requests that were already waiting.
+     */
+    @Test public void upgradeGoesFirst() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        TransactionId tid3 = new TransactionId();
+
+        lm.acquireLock(tid1, PID, Permissions.READ_ONLY);
+        lm.acquireLock(tid2, PID, Permissions.READ_ONLY);
+        CountDownLatch writer = acquireAsync(lm, tid3, Permissions.READ_WRITE);
+        assertFalse(writer.await(200, TimeUnit.MILLISECONDS));
+        CountDownLatch upgrade = acquireAsync(lm, tid1, Permissions.READ_WRITE);
+        assertFalse(upgrade.await(200, TimeUnit.MILLISECONDS));
+
+        lm.releaseLock(tid2, PID);
+        assertTrue(upgrade.await(1, TimeUnit.SECONDS));
+        assertEquals(Permissions.READ_WRITE, lm.getLockMode(tid1, PID));
+        assertFalse(writer.await(200, TimeUnit.MILLISECONDS));
+        lm.releaseAllLocks(tid1);
+        assertTrue(writer.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Sets up a deadlock between two transactions, where the older one holds
+     * one more lock, and returns the latches of {young, old} being aborted.
+     */
+    private static CountDownLatch[] deadlock(LockManager lm, TransactionId old,
+            TransactionId young) throws Exception {
+        lm.acquireLock(old, PID, Permissions.READ_WRITE);
+        lm.acquireLock(old, new HeapPageId(1, 2), Permissions.READ_WRITE);
+        lm.acquireLock(young, PID2, Permissions.READ_WRITE);
+        CountDownLatch oldAborted = new CountDownLatch(1);
+        CountDownLatch youngAborted = new CountDownLatch(1);
+        acquireAsync(lm, old, PID2, Permissions.READ_WRITE, oldAborted);
+        acquireAsync(lm, young, PID, Permissions.READ_WRITE, youngAborted);
+        return new CountDownLatch[] { youngAborted, oldAborted };
+    }
+
+    /**
+     * Releasing a lock without granting it to anyone still drops the
+     * waits-for edges to the transaction that released it.
+     */
+    @Test public void releaseRefreshesEdges() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        TransactionId tid3 = new TransactionId();
+        lm.acquireLock(tid1, PID, Permissions.READ_ONLY);
+        lm.acquireLock(tid2, PID, Permissions.READ_ONLY);
+        CountDownLatch writer = acquireAsync(lm, tid3, Permissions.READ_WRITE);
+        for (int i = 0; i < 100 && lm.getWaitsForGraph().getBlockers(tid3).size() < 2; i++)
+            Thread.sleep(10);
+        assertEquals(2, lm.getWaitsForGraph().getBlockers(tid3).size());
+
+        lm.releaseLock(tid1, PID);
+        assertEquals(Collections.singleton(tid2), lm.getWaitsForGraph().getBlockers(tid3));
+        lm.releaseAllLocks(tid2);
+        assertTrue(writer.await(1, TimeUnit.SECONDS));
+        assertTrue(lm.getWaitsForGraph().getBlockers(tid3).isEmpty());
+    }
+
+    /**
+     * The background detector breaks a deadlock by aborting the youngest
+     * transaction on the cycle.
+     */
+    @Test public void detectorAbortsYoungest() throws Exception {
+        LockManager lm = new LockManager();
+        lm.startDeadlockDetector(20, DeadlockDetector.VictimPolicy.YOUNGEST);
+        try {
+            TransactionId old = new TransactionId();
+            TransactionId young = new TransactionId();
+            CountDownLatch[] aborted = deadlock(lm, old, young);
+            assertTrue(aborted[0].await(2, TimeUnit.SECONDS));
+            assertFalse(aborted[1].await(200, TimeUnit.MILLISECONDS));
+            assertTrue(lm.getWaitsForGraph().getBlockers(young).isEmpty());
+        } finally {
+            lm.stopDeadlockDetector();
+        }
+    }
+
+    /**
+     * With the least-work policy the transaction holding fewer locks is
+     * aborted, even if it is older.
+     */
+    @Test public void detectorAbortsLeastWork() throws Exception {
+        LockManager lm = new LockManager();
+        lm.startDeadlockDetector(20, DeadlockDetector.VictimPolicy.LEAST_WORK);
+        try {
+            TransactionId old = new TransactionId();
+            TransactionId young = new TransactionId();
+            // the young transaction holds three locks, the old one two
+            lm.acquireLock(young, new HeapPageId(1, 3), Permissions.READ_ONLY);
+            lm.acquireLock(young, new HeapPageId(1, 4), Permissions.READ_ONLY);
+            CountDownLatch[] aborted = deadlock(lm, old, young);
+            assertTrue(aborted[1].await(2, TimeUnit.SECONDS));
+            assertFalse(aborted[0].await(200, TimeUnit.MILLISECONDS));
+        } finally {
+            lm.stopDeadlockDetector();
+        }
+    }
+
+    /**
+     * Under wait-die a younger transaction dies instead of waiting for an
+     * older one, while an older transaction waits for a younger one.
+     */
+    @Test public void waitDie() throws Exception {
+        LockManager lm = new LockManager();
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        TransactionId old = new TransactionId();
+        TransactionId young = new TransactionId();
+        lm.acquireLock(old, PID, Permissions.READ_WRITE);
+        lm.acquireLock(young, PID2, Permissions.READ_WRITE);
+
+        try {
+            lm.acquireLock(young, PID, Permissions.READ_ONLY);
+            fail("expected the younger transaction to die");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, lm.getAbortCount(LockManager.DeadlockPolicy.WAIT_DIE));
+
+        CountDownLatch granted = acquireAsync(lm, old, PID2, Permissions.READ_ONLY, null);
+        assertFalse(granted.await(200, TimeUnit.MILLISECONDS));
+        lm.releaseAllLocks(young);
+        assertTrue(granted.await(1, TimeUnit.SECONDS));
+        assertEquals(1, lm.getAbortCount(LockManager.DeadlockPolicy.WAIT_DIE));
+    }
+
+    /**
+     * Under wound-wait an older transaction aborts a younger one it waits for.
+     */
+    @Test public void woundWait() throws Exception {
+        LockManager lm = new LockManager();
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        TransactionId old = new TransactionId();
+        TransactionId young = new TransactionId();
+        lm.acquireLock(old, PID, Permissions.READ_WRITE);
+        lm.acquireLock(young, PID2, Permissions.READ_WRITE);
+
+        // the younger transaction waits for the older one
+        CountDownLatch youngAborted = new CountDownLatch(1);
+        acquireAsync(lm, young, PID, Permissions.READ_WRITE, youngAborted);
+        assertFalse(youngAborted.await(200, TimeUnit.MILLISECONDS));
+
+        // the older transaction wounds it, and gets its lock once it is released
+        CountDownLatch granted = acquireAsync(lm, old, PID2, Permissions.READ_WRITE, null);
+        assertTrue(youngAborted.await(1, TimeUnit.SECONDS));
+        assertEquals(1, lm.getAbortCount(LockManager.DeadlockPolicy.WOUND_WAIT));
+        lm.releaseAllLocks(young);
+        assertTrue(granted.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A wounded transaction that completes before its next lock request is
+     * not counted as aborted.
+     */
+    @Test public void woundWaitCountsOnlyAborts() throws Exception {
+        LockManager lm = new LockManager();
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        TransactionId old = new TransactionId();
+        TransactionId young = new TransactionId();
+        lm.acquireLock(young, PID, Permissions.READ_ONLY);
+
+        CountDownLatch granted = acquireAsync(lm, old, Permissions.READ_WRITE);
+        assertFalse(granted.await(200, TimeUnit.MILLISECONDS));
+        lm.releaseAllLocks(young);
+        assertTrue(granted.await(1, TimeUnit.SECONDS));
+        assertEquals(0, lm.getAbortCount(LockManager.DeadlockPolicy.WOUND_WAIT));
+    }
+
+    /**
+     * A running wounded transaction fails its next operation through the
+     * buffer pool, even on a page it already holds, and the older
+     * transaction gets its lock once the victim aborts.
+     */
+    @Test public void woundWaitFailsNextAccess() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BufferPool bp = Database.getBufferPool();
+        LockManager lm = bp.getLockManager();
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        TransactionId old = new TransactionId();
+        TransactionId young = new TransactionId();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        bp.getPage(young, pid, Permissions.READ_WRITE);
+
+        CountDownLatch granted = acquireAsync(lm, old, pid, Permissions.READ_WRITE, null);
+        assertFalse(granted.await(200, TimeUnit.MILLISECONDS));
+        try {
+            bp.insertTuple(young, hf.getId(), Utility.getHeapTuple(1, 2));
+            fail("expected the wounded transaction to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        try {
+            bp.getPage(young, pid, Permissions.READ_ONLY);
+            fail("expected the wounded transaction to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        bp.transactionComplete(young, false);
+        assertTrue(granted.await(1, TimeUnit.SECONDS));
+        assertEquals(2, lm.getAbortCount(LockManager.DeadlockPolicy.WOUND_WAIT));
+        bp.transactionComplete(old);
+    }
+
+    /**
+     * Under no-wait a conflicting request aborts right away.
+     */
+    @Test public void noWait() throws Exception {
+        LockManager lm = new LockManager();
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.NO_WAIT);
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.acquireLock(tid1, PID, Permissions.READ_ONLY);
+        lm.acquireLock(tid2, PID, Permissions.READ_ONLY);
+        try {
+            lm.acquireLock(tid2, PID, Permissions.READ_WRITE);
+            fail("expected the conflicting request to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, lm.getAbortCount(LockManager.DeadlockPolicy.NO_WAIT));
+        assertEquals(0, lm.getAbortCount(LockManager.DeadlockPolicy.DETECT));
+    }
+
+    /**
+     * The lock state of a page is dropped once nobody holds or waits for it.
+     */
+    @Test public void releasedPagesAreDropped() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.acquireLock(tid1, PID, Permissions.READ_WRITE);
+        lm.acquireLock(tid1, PID2, Permissions.READ_ONLY);
+        CountDownLatch granted = acquireAsync(lm, tid2, Permissions.READ_ONLY);
+        assertFalse(granted.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, lm.numLockedPages());
+
+        lm.releaseLock(tid1, PID2);
+        assertEquals(1, lm.numLockedPages());
+        lm.releaseAllLocks(tid1);
+        assertTrue(granted.await(1, TimeUnit.SECONDS));
+        assertEquals(1, lm.numLockedPages());
+        lm.releaseAllLocks(tid2);
+        assertEquals(0, lm.numLockedPages());
+
+        // a page can be locked again after its lock state was dropped
+        lm.acquireLock(tid1, PID, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(tid1, PID));
+        lm.releaseAllLocks(tid1);
+        assertEquals(0, lm.numLockedPages());
+    }
+
+    /**
+     * A scan of a table leaves no lock state behind once its transaction
+     * completes.
+     */
+    @Test public void transactionCompleteDropsPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            scan.next();
+        scan.close();
+        LockManager lm = Database.getBufferPool().getLockManager();
+        assertEquals(hf.numPages(), lm.numLockedPages());
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(0, lm.numLockedPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogCodecTest extends SimpleDbTestBase {
+
+    private static PageId roundTrip(PageId pid) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(LogCodec.idSize(pid));
+        LogCodec.putPageId(buf, pid);
+        assertEquals(0, buf.remaining());
+        buf.flip();
+        PageId read = LogCodec.getPageId(buf);
+        assertEquals(0, buf.remaining());
+        return read;
+    }
+
+    /**
+     * Page ids are written as a tag and their fields, and read back equal.
+     */
+    @Test public void pageIds() throws IOException {
+        HeapPageId heapId = new HeapPageId(7, 3);
+        assertEquals(heapId, roundTrip(heapId));
+        assertEquals(1 + 2 * Type.INT_TYPE.getLen(), LogCodec.idSize(heapId));
+
+        for (int categ = BTreePageId.ROOT_PTR; categ <= BTreePageId.HEADER; categ++) {
+            BTreePageId btreeId = new BTreePageId(7, 3, categ);
+            assertEquals(btreeId, roundTrip(btreeId));
+        }
+    }
+
+    /**
+     * A page is rebuilt from its id and data.
+     */
+    @Test public void heapPage() throws Exception {
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-1, Utility.getTupleDesc(2)),
+                SystemTestUtil.getUUID());
+        HeapPageId pid = new HeapPageId(-1, -1);
+        Page page = LogCodec.newPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertTrue(page instanceof HeapPage);
+        assertEquals(pid, page.getId());
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData());
+    }
+
+    @Test(expected = IOException.class) public void unknownTag() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        buf.put((byte) 99);
+        buf.flip();
+        LogCodec.getPageId(buf);
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void tagTaken() {
+        LogCodec.register(LogCodec.HEAP_PAGE, BTreePageId.class, null);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogCodecTest.class);
+    }
+}
@@ -0,0 +1,193 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+    private static final int ROWS = 2000;
+
+    private TupleDesc td;
+    private BTreeFile btree;
+    private HeapFile heap;
+
+    /** Statistics with a fixed scan cost and selectivity */
+    private static class FixedStats extends TableStats {
+        private final double scanCost;
+        private final double selectivity;
+
+        FixedStats(int tableid, double scanCost, double selectivity) {
+            super(tableid, IOCOSTPERPAGE);
+            this.scanCost = scanCost;
+            this.selectivity = selectivity;
+        }
+
+        public double estimateScanCost() {
+            return scanCost;
+        }
+
+        public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+            return selectivity;
+        }
+
+        public int estimateTableCardinality(double selectivityFactor) {
+            return (int) (ROWS * selectivityFactor);
+        }
+
+        public int totalTuples() {
+            return ROWS;
+        }
+    }
+
+    @Before public void setUp() throws Exception {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE }, new String[] { "id", "val" });
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(i % 50));
+            tuples.add(t);
+        }
+
+        File bf = File.createTempFile("plan", ".btree");
+        bf.deleteOnExit();
+        btree = BTreeFileEncoder.bulkLoad(new TupleIterator(td, tuples), bf, 0, 1.0);
+        Database.getCatalog().addTable(btree, "bt");
+
+        File hf = File.createTempFile("plan", ".dat");
+        hf.deleteOnExit();
+        hf.delete();
+        heap = new HeapFile(hf, td);
+        Database.getCatalog().addTable(heap, "ht");
+        TransactionId tid = new TransactionId();
+        for (Tuple t : tuples) {
+            Tuple copy = new Tuple(td);
+            copy.setField(0, t.getField(0));
+            copy.setField(1, t.getField(1));
+            Database.getBufferPool().insertTuple(tid, heap.getId(), copy);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        File idx = File.createTempFile("plan", ".idx");
+        idx.deleteOnExit();
+        Database.getCatalog().addIndex(SecondaryIndex.create(heap.getId(), 1, idx));
+    }
+
+    private OpIterator plan(String table, LogicalPlan lp, double scanCost, double selectivity)
+            throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        int tableid = Database.getCatalog().getTableId(table);
+        stats.put(table, new FixedStats(tableid, scanCost, selectivity));
+        return lp.physicalPlan(new TransactionId(), stats, false);
+    }
+
+    private LogicalPlan query(String table, String filterField, Predicate.Op op, String constant)
+            throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(Database.getCatalog().getTableId(table), "t");
+        if (filterField != null)
+            lp.addFilter("t." + filterField, op, constant);
+        lp.addProjectField("*", null);
+        return lp;
+    }
+
+    /** @return the operator below the Project of a plan */
+    private OpIterator below(OpIterator plan) {
+        return ((Operator) plan).getChildren()[0];
+    }
+
+    private int count(OpIterator it) throws Exception {
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A selective filter on the key of a BTreeFile is answered by a
+     * BTreeScan, an unselective one by a sequential scan.
+     */
+    @Test public void btreeKeyFilter() throws Exception {
+        OpIterator p = plan("bt", query("bt", "id", Predicate.Op.LESS_THAN, "20"), 100000, 0.01);
+        assertTrue(below(p) instanceof BTreeScan);
+        assertEquals(20, count(p));
+
+        p = plan("bt", query("bt", "id", Predicate.Op.LESS_THAN, "20"), 100000, 1.0);
+        assertTrue(below(p) instanceof Filter);
+        assertTrue(((Filter) below(p)).getChildren()[0] instanceof SeqScan);
+        assertEquals(20, count(p));
+
+        // filters on other fields cannot use the tree
+        p = plan("bt", query("bt", "val", Predicate.Op.EQUALS, "3"), 100000, 0.01);
+        assertTrue(below(p) instanceof Filter);
+    }
+
+    /** ORDER BY the key of a BTreeFile reads the tree in order. */
+    @Test public void btreeOrderBy() throws Exception {
+        LogicalPlan lp = query("bt", null, null, null);
+        lp.addOrderBy("t.id", false);
+        OpIterator p = plan("bt", lp, 100000, 1.0);
+        assertTrue(below(p) instanceof BTreeReverseScan);
+        p.open();
+        int expected = ROWS - 1;
+        while (p.hasNext())
+            assertEquals(expected--, ((IntField) p.next().getField(0)).getValue());
+        p.close();
+        assertEquals(-1, expected);
+
+        lp = query("bt", "id", Predicate.Op.GREATER_THAN_OR_EQ, "100");
+        lp.addOrderBy("t.id", true);
+        p = plan("bt", lp, 100000, 0.5);
+        assertTrue(below(p) instanceof BTreeScan);
+        assertEquals(ROWS - 100, count(p));
+
+        // ordered on another field, the tuples still have to be sorted
+        lp = query("bt", "id", Predicate.Op.LESS_THAN, "20");
+        lp.addOrderBy("t.val", true);
+        p = plan("bt", lp, 100000, 0.01);
+        assertTrue(below(p) instanceof OrderBy);
+        assertTrue(((OrderBy) below(p)).getChildren()[0] instanceof BTreeScan);
+    }
+
+    /**
+     * A filter on a field of a heap file with a secondary index is answered
+     * by the index when it selects few enough tuples.
+     */
+    @Test public void secondaryIndexFilter() throws Exception {
+        OpIterator p = plan("ht", query("ht", "val", Predicate.Op.EQUALS, "7"), 50000, 0.001);
+        assertTrue(below(p) instanceof SecondaryIndexScan);
+        p.open();
+        int n = 0;
+        while (p.hasNext()) {
+            assertEquals(7, ((IntField) p.next().getField(1)).getValue());
+            n++;
+        }
+        p.close();
+        assertEquals(ROWS / 50, n);
+
+        p = plan("ht", query("ht", "val", Predicate.Op.EQUALS, "7"), 50000, 0.5);
+        assertTrue(below(p) instanceof Filter);
+        assertEquals(ROWS / 50, count(p));
+        p = plan("ht", query("ht", "id", Predicate.Op.EQUALS, "7"), 50000, 0.001);
+        assertTrue(below(p) instanceof Filter);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
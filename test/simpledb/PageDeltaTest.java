@@ -0,0 +1,92 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    /**
+     * Redoing a delta over the old image gives the new image, and undoing it
+     * over the new image gives the old one.
+     */
+    @Test public void redoUndo() {
+        byte[] before = new byte[64];
+        byte[] after = before.clone();
+        after[3] = 1;
+        after[40] = 2;
+        after[41] = 3;
+        PageDelta delta = PageDelta.diff(before, after);
+        assertEquals(2, delta.numRanges());
+        assertEquals(3, delta.changedBytes());
+
+        byte[] page = before.clone();
+        delta.redo(page);
+        assertArrayEquals(after, page);
+        delta.undo(page);
+        assertArrayEquals(before, page);
+    }
+
+    /**
+     * Changes separated by a few unchanged bytes are merged into one range.
+     */
+    @Test public void mergeSmallGaps() {
+        byte[] before = new byte[64];
+        byte[] after = before.clone();
+        after[10] = 1;
+        after[10 + PageDelta.MAX_GAP + 1] = 1;
+        after[40] = 1;
+        PageDelta delta = PageDelta.diff(before, after);
+        assertEquals(2, delta.numRanges());
+        assertEquals(PageDelta.MAX_GAP + 3, delta.changedBytes());
+    }
+
+    @Test public void identicalImages() {
+        byte[] page = new byte[16];
+        assertTrue(PageDelta.diff(page, page.clone()).isEmpty());
+    }
+
+    @Test public void serialization() throws IOException {
+        byte[] before = new byte[32];
+        byte[] after = before.clone();
+        after[0] = 7;
+        after[31] = 9;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PageDelta.diff(before, after).write(new DataOutputStream(bytes));
+        PageDelta delta = PageDelta.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+
+        byte[] page = before.clone();
+        delta.redo(page);
+        assertArrayEquals(after, page);
+    }
+
+    /**
+     * Inserting a tuple into a HeapPage only changes a small part of it.
+     */
+    @Test public void heapPageInsert() throws Exception {
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-1, Utility.getTupleDesc(2)),
+                SystemTestUtil.getUUID());
+        HeapPageId pid = new HeapPageId(-1, -1);
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(42, 2));
+        PageDelta delta = PageDelta.diff(before, page.getPageData());
+        assertTrue(delta.changedBytes() <= 1 + 2 * Type.INT_TYPE.getLen() + PageDelta.MAX_GAP);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,78 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageTableTest extends SimpleDbTestBase {
+
+    /**
+     * Pages whose ids have the same hash code must not alias each other.
+     */
+    @Test public void collidingHashCodes() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid1 = new HeapPageId(f.getId(), 0);
+        HeapPageId pid2 = new HeapPageId(f.getId() + 1, -31);
+        assertEquals(pid1.hashCode(), pid2.hashCode());
+
+        PageTable table = new PageTable(4);
+        Page p1 = f.readPage(pid1);
+        table.put(p1);
+        assertNull(table.get(pid2));
+        assertSame(p1, table.get(pid1));
+        assertEquals(1, table.size());
+    }
+
+    /**
+     * A pinned page is never evicted.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512 * 4, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        HeapPageId pid0 = new HeapPageId(f.getId(), 0);
+        HeapPageId pid1 = new HeapPageId(f.getId(), 1);
+        HeapPageId pid2 = new HeapPageId(f.getId(), 2);
+        HeapPageId pid3 = new HeapPageId(f.getId(), 3);
+
+        Page pinned = bp.pinPage(tid, pid0, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(pid0));
+        bp.getPage(tid, pid1, Permissions.READ_ONLY);
+        bp.getPage(tid, pid2, Permissions.READ_ONLY);
+        bp.getPage(tid, pid3, Permissions.READ_ONLY);
+
+        long misses = bp.getMissCount();
+        assertSame(pinned, bp.getPage(tid, pid0, Permissions.READ_ONLY));
+        assertEquals(misses, bp.getMissCount());
+
+        // with every frame pinned, nothing can be evicted
+        bp.pinPage(tid, pid3, Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, pid1, Permissions.READ_ONLY);
+            fail("expected DbException when all pages are pinned");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(pid0);
+        bp.unpinPage(pid3);
+        assertEquals(0, bp.getPinCount(pid0));
+        assertNotNull(bp.getPage(tid, pid1, Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTableTest.class);
+    }
+}
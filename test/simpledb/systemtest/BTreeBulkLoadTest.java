@@ -0,0 +1,163 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Bulk loads B+ trees from unsorted iterators and checks their structure and
+ * contents.
+ */
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+    private static final Random r = new Random(23);
+
+    private TransactionId tid;
+
+    @After public void tearDown() throws Exception {
+        if (tid != null)
+            Database.getBufferPool().transactionComplete(tid);
+        tid = null;
+        BufferPool.resetPageSize();
+    }
+
+    private File tempFile() throws Exception {
+        File f = File.createTempFile("bulkload", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private ArrayList<ArrayList<Integer>> randomRows(int rows) {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < rows; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(r.nextInt(rows / 4));
+            t.add(i);
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    private OpIterator iterator(ArrayList<ArrayList<Integer>> rows) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (ArrayList<Integer> row : rows)
+            tuples.add(Utility.getTuple(new int[] { row.get(0), row.get(1) }, 2));
+        return new TupleIterator(Utility.getTupleDesc(2), tuples);
+    }
+
+    /** Full pages give a tree that passes the occupancy checks. */
+    @Test public void testFullPages() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = randomRows(20000);
+        BTreeFile bf = BTreeFileEncoder.bulkLoad(iterator(rows), tempFile(), 0, 1.0);
+        tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+        SystemTestUtil.matchTuples(bf, tid, rows);
+
+        // index lookups find every duplicate of a key
+        int key = rows.get(0).get(0);
+        int expected = 0;
+        for (ArrayList<Integer> row : rows)
+            if (row.get(0) == key)
+                expected++;
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        int found = 0;
+        while (it.hasNext()) {
+            assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+            found++;
+        }
+        it.close();
+        assertEquals(expected, found);
+    }
+
+    /** Small pages give a tree with several levels of internal pages. */
+    @Test public void testSmallPages() throws Exception {
+        BufferPool.setPageSize(256);
+        Database.reset();
+        ArrayList<ArrayList<Integer>> rows = randomRows(20000);
+        BTreeFile bf = BTreeFileEncoder.bulkLoad(iterator(rows), tempFile(), 0, 1.0);
+        tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+                rootPtr.getRootId(), Permissions.READ_ONLY);
+        assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+        SystemTestUtil.matchTuples(bf, tid, rows);
+    }
+
+    /** Partly filled pages leave room for inserts without splits. */
+    @Test public void testFillFactor() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = randomRows(10000);
+        BTreeFile full = BTreeFileEncoder.bulkLoad(iterator(rows), tempFile(), 0, 1.0);
+        BTreeFile half = BTreeFileEncoder.bulkLoad(iterator(rows), tempFile(), 0, 0.5);
+        assertTrue(half.numPages() > full.numPages() * 3 / 2);
+
+        tid = new TransactionId();
+        BTreeChecker.checkRep(half, tid, new HashMap<PageId, Page>(), false);
+        int pages = half.numPages();
+        for (int i = 0; i < 20; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(r.nextInt(5000));
+            row.add(-i);
+            rows.add(row);
+            Database.getBufferPool().insertTuple(tid, half.getId(),
+                    Utility.getTuple(new int[] { row.get(0), row.get(1) }, 2));
+        }
+        assertEquals(pages, half.numPages());
+        SystemTestUtil.matchTuples(half, tid, rows);
+    }
+
+    /** Any key type can be loaded, and small inputs give a single leaf. */
+    @Test public void testStringKeysAndSmallInputs() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE },
+                new String[] { "name", "id" });
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 500; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("k" + r.nextInt(1000), Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        BTreeFile bf = BTreeFileEncoder.bulkLoad(new TupleIterator(td, tuples), tempFile(), 0, 0.8);
+        tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int count = 0;
+        Field prev = null;
+        while (it.hasNext()) {
+            Field f = it.next().getField(0);
+            assertTrue(prev == null || prev.compare(Op.LESS_THAN_OR_EQ, f));
+            prev = f;
+            count++;
+        }
+        it.close();
+        assertEquals(tuples.size(), count);
+
+        ArrayList<ArrayList<Integer>> one = randomRows(4);
+        BTreeFile leaf = BTreeFileEncoder.bulkLoad(iterator(one), tempFile(), 0, 1.0);
+        assertEquals(1, leaf.numPages());
+        SystemTestUtil.matchTuples(leaf, tid, one);
+
+        BTreeFile empty = BTreeFileEncoder.bulkLoad(iterator(new ArrayList<ArrayList<Integer>>()),
+                tempFile(), 0, 1.0);
+        SystemTestUtil.matchTuples(empty, tid, new ArrayList<ArrayList<Integer>>());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeBulkLoadTest.class);
+    }
+}
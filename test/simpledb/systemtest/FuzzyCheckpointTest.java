@@ -0,0 +1,158 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Takes fuzzy checkpoints while committed changes are only in the buffer
+ * pool, and checks that recovery redoes them from the dirty page table.
+ */
+public class FuzzyCheckpointTest extends SimpleDbTestBase {
+    private static final int THREADS = 4;
+    private static final int COMMITS = 30;
+
+    private File[] files;
+    private HeapFile[] tables;
+
+    private void setup(int n) throws IOException {
+        Database.reset();
+        // the tests decide when pages are written
+        Database.getBufferPool().stopBackgroundWriter();
+        files = new File[n];
+        tables = new HeapFile[n];
+        for (int i = 0; i < n; i++) {
+            files[i] = File.createTempFile("fuzzycheckpoint", ".dat");
+            files[i].deleteOnExit();
+            files[i].delete();
+            tables[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+        }
+    }
+
+    private static void insertRow(HeapFile hf, int v)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(v));
+        value.setField(1, new IntField(0));
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), Arrays.asList(new Tuple[]{value})),
+                hf.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+        t.commit();
+    }
+
+    private static int countTuples(HeapPage page) {
+        int n = 0;
+        for (java.util.Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next())
+            n++;
+        return n;
+    }
+
+    private void crashAndCheck(int commits) throws Exception {
+        Database.reset();
+        for (int i = 0; i < tables.length; i++)
+            tables[i] = Utility.openHeapFile(2, files[i]);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < tables.length; i++) {
+            SeqScan scan = new SeqScan(t.getId(), tables[i].getId(), "");
+            scan.open();
+            int[] seen = new int[commits];
+            while (scan.hasNext())
+                seen[((IntField) scan.next().getField(0)).getValue()]++;
+            scan.close();
+            for (int v = 0; v < commits; v++)
+                assertEquals("commit " + v + " of table " + i, 1, seen[v]);
+        }
+        t.commit();
+    }
+
+    /**
+     * A checkpoint writes no page, so the committed page stays in the dirty
+     * page table, and recovery redoes it from before the checkpoint.
+     */
+    @Test public void testCheckpointWithUnwrittenPages() throws Exception {
+        setup(1);
+        for (int v = 0; v < 10; v++)
+            insertRow(tables[0], v);
+        HeapPageId pid = new HeapPageId(tables[0].getId(), 0);
+        Long recLSN = Database.getBufferPool().dirtyPageTable().get(pid);
+        assertNotNull(recLSN);
+
+        Database.getLogFile().logCheckpoint();
+        assertEquals(recLSN, Database.getBufferPool().dirtyPageTable().get(pid));
+        assertEquals(0, countTuples((HeapPage) tables[0].readPage(pid)));
+
+        crashAndCheck(10);
+    }
+
+    /** The background writer empties the dirty page table. */
+    @Test public void testBackgroundWriter() throws Exception {
+        setup(1);
+        for (int v = 0; v < 10; v++)
+            insertRow(tables[0], v);
+        assertFalse(Database.getBufferPool().dirtyPageTable().isEmpty());
+
+        Database.getBufferPool().startBackgroundWriter(5, BackgroundWriter.DEFAULT_PAGES_PER_ROUND, 0);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Database.getBufferPool().dirtyPageTable().isEmpty()
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        Database.getBufferPool().stopBackgroundWriter();
+        assertTrue(Database.getBufferPool().dirtyPageTable().isEmpty());
+        assertEquals(10, countTuples((HeapPage) tables[0].readPage(
+                new HeapPageId(tables[0].getId(), 0))));
+
+        Database.getLogFile().logCheckpoint();
+        crashAndCheck(10);
+    }
+
+    /**
+     * Committers keep running while the background writer writes pages and
+     * takes checkpoints every few milliseconds.
+     */
+    @Test public void testCheckpointsDuringCommits() throws Exception {
+        setup(THREADS);
+        Database.getBufferPool().startBackgroundWriter(2, 1, 5);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final HeapFile hf = tables[i];
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int v = 0; v < COMMITS; v++)
+                            insertRow(hf, v);
+                    } catch (Exception e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        Database.getBufferPool().stopBackgroundWriter();
+        if (error.get() != null)
+            throw error.get();
+        crashAndCheck(COMMITS);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(FuzzyCheckpointTest.class);
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs concurrent committing transactions with group commit enabled, and
+ * checks that every commit is durable across a crash.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int COMMITS = 20;
+
+    private File[] files;
+    private HeapFile[] tables;
+
+    private void setup() throws IOException {
+        files = new File[THREADS];
+        tables = new HeapFile[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            files[i] = File.createTempFile("groupcommit", ".dat");
+            files[i].deleteOnExit();
+            files[i].delete();
+            tables[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+        }
+    }
+
+    private static void insertRow(HeapFile hf, int v)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(v));
+        value.setField(1, new IntField(0));
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), Arrays.asList(new Tuple[]{value})),
+                hf.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+        t.commit();
+    }
+
+    /** Each thread commits COMMITS single row transactions on its own table. */
+    private void runCommitters() throws Exception {
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final HeapFile hf = tables[i];
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int v = 0; v < COMMITS; v++)
+                            insertRow(hf, v);
+                    } catch (Exception e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (error.get() != null)
+            throw error.get();
+    }
+
+    private void crashAndCheck() throws Exception {
+        Database.reset();
+        for (int i = 0; i < THREADS; i++)
+            tables[i] = Utility.openHeapFile(2, files[i]);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < THREADS; i++) {
+            SeqScan scan = new SeqScan(t.getId(), tables[i].getId(), "");
+            scan.open();
+            boolean[] seen = new boolean[COMMITS + 1];
+            while (scan.hasNext())
+                seen[((IntField) scan.next().getField(0)).getValue()] = true;
+            scan.close();
+            for (int v = 0; v < COMMITS; v++)
+                assertTrue("commit " + v + " of table " + i + " lost", seen[v]);
+        }
+        t.commit();
+    }
+
+    @Test public void testConcurrentCommitsDurable() throws Exception {
+        setup();
+        Database.getLogFile().startGroupCommit(0);
+        assertTrue(Database.getLogFile().isGroupCommit());
+        runCommitters();
+        crashAndCheck();
+    }
+
+    @Test public void testDelayedGroupCommit() throws Exception {
+        setup();
+        Database.getLogFile().startGroupCommit(2);
+        runCommitters();
+        Database.getLogFile().stopGroupCommit();
+        assertFalse(Database.getLogFile().isGroupCommit());
+        insertRow(tables[0], COMMITS);
+        crashAndCheck();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs the log with segments smaller than a page image, so that records
+ * start new segments and checkpoints delete old ones, and checks that
+ * recovery reads the log across segments.
+ */
+public class LogSegmentTest extends SimpleDbTestBase {
+    private static final int SEGMENT_SIZE = 8192;
+    private static final int COMMITS = 60;
+
+    private File file;
+    private HeapFile table;
+
+    private void setup() throws IOException {
+        System.setProperty(Database.LOG_SEGMENT_SIZE_PROPERTY, Integer.toString(SEGMENT_SIZE));
+        Database.reset();
+        Database.getBufferPool().stopBackgroundWriter();
+        file = File.createTempFile("logsegment", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        table = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After public void clearSegmentSize() {
+        System.clearProperty(Database.LOG_SEGMENT_SIZE_PROPERTY);
+    }
+
+    private void insertRow(int v)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(v));
+        value.setField(1, new IntField(0));
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), Arrays.asList(new Tuple[]{value})),
+                table.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+        t.commit();
+    }
+
+    private void crashAndCheck(int commits) throws Exception {
+        Database.reset();
+        table = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), table.getId(), "");
+        scan.open();
+        int[] seen = new int[commits];
+        while (scan.hasNext())
+            seen[((IntField) scan.next().getField(0)).getValue()]++;
+        scan.close();
+        t.commit();
+        for (int v = 0; v < commits; v++)
+            assertEquals("commit " + v, 1, seen[v]);
+    }
+
+    /** Page images larger than a segment get segments of their own. */
+    @Test public void testRecoverAcrossSegments() throws Exception {
+        setup();
+        for (int v = 0; v < COMMITS; v++) {
+            insertRow(v);
+            // log a full page image now and then
+            if (v % 10 == 9)
+                Database.getBufferPool().flushAllPages();
+        }
+        assertTrue(Database.getLogFile().getNumSegments() > 1);
+        crashAndCheck(COMMITS);
+    }
+
+    /**
+     * Once every page is on disk, a checkpoint deletes all the segments
+     * before it, and recovery still finds the checkpoint.
+     */
+    @Test public void testCheckpointDeletesSegments() throws Exception {
+        setup();
+        for (int v = 0; v < COMMITS; v++) {
+            insertRow(v);
+            if (v % 10 == 9)
+                Database.getBufferPool().flushAllPages();
+        }
+        int before = Database.getLogFile().getNumSegments();
+        assertTrue(before > 1);
+
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        int after = Database.getLogFile().getNumSegments();
+        assertTrue(after < before);
+
+        for (int v = COMMITS; v < COMMITS + 5; v++)
+            insertRow(v);
+        crashAndCheck(COMMITS + 5);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogSegmentTest.class);
+    }
+}
@@ -427,6 +427,90 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestOpenCrashCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts but does not commit
+        // crash, recover
+        // T2 inserts and commits
+        // crash again: the undo of T1 must not be redone over T2
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 30, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        crash();
+
+        doInsert(hf1, 31, -1);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 30, false);
+        look(hf1, t, 31, true);
+        t.commit();
+    }
+
+    // count the tuples of a B+ tree whose first field is in [lo, hi)
+    int countBTree(BTreeFile bf, Transaction t, int lo, int hi)
+        throws DbException, TransactionAbortedException {
+        int count = 0;
+        SeqScan scan = new SeqScan(t.getId(), bf.getId(), "");
+        scan.open();
+        while(scan.hasNext()){
+            int x = ((IntField)scan.next().getField(0)).getValue();
+            if(x >= lo && x < hi)
+                count = count + 1;
+        }
+        scan.close();
+        return count;
+    }
+
+    @Test public void TestBTreeCommitOpenCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 0, null, null, 0);
+
+        // *** Test:
+        // T1 inserts enough to split leaf pages and commits
+        // T2 inserts but does not commit
+        // crash
+        // only T1 data should be there
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(t1.getId(), bf.getId(),
+                                                 BTreeUtility.getBTreeTuple(new int[]{i, 0}));
+        Database.getBufferPool().flushAllPages();
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 1000; i < 1100; i++)
+            Database.getBufferPool().insertTuple(t2.getId(), bf.getId(),
+                                                 BTreeUtility.getBTreeTuple(new int[]{i, 0}));
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        // crash, with the B+ tree in the catalog during recovery
+        Database.reset();
+        bf = BTreeUtility.openBTreeFile(2, bf.getFile(), 0);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(1000, countBTree(bf, t, 0, 1000));
+        assertEquals(0, countBTree(bf, t, 1000, 1100));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
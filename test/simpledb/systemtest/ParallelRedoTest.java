@@ -0,0 +1,100 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Commits updates to many pages of several tables without writing them,
+ * and checks that recovery redoes all of them with several redo threads.
+ */
+public class ParallelRedoTest extends SimpleDbTestBase {
+    private static final int TABLES = 6;
+    private static final int ROWS = 1500; // several pages per table
+
+    private File[] files;
+    private HeapFile[] tables;
+
+    private void setup() throws IOException {
+        Database.reset();
+        Database.getBufferPool().stopBackgroundWriter();
+        files = new File[TABLES];
+        tables = new HeapFile[TABLES];
+        for (int i = 0; i < TABLES; i++) {
+            files[i] = File.createTempFile("parallelredo", ".dat");
+            files[i].deleteOnExit();
+            files[i].delete();
+            tables[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+        }
+    }
+
+    private void insertRows(int from, int to)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        for (HeapFile hf : tables) {
+            ArrayList<Tuple> rows = new ArrayList<Tuple>();
+            for (int v = from; v < to; v++) {
+                Tuple value = new Tuple(Utility.getTupleDesc(2));
+                value.setField(0, new IntField(v));
+                value.setField(1, new IntField(hf.getId()));
+                rows.add(value);
+            }
+            Insert insert = new Insert(t.getId(),
+                    new TupleIterator(Utility.getTupleDesc(2), rows), hf.getId());
+            insert.open();
+            insert.next();
+            insert.close();
+        }
+        t.commit();
+    }
+
+    private void crashAndCheck(int threads, int rows) throws Exception {
+        Database.reset();
+        for (int i = 0; i < TABLES; i++)
+            tables[i] = Utility.openHeapFile(2, files[i]);
+        Database.getLogFile().setRecoveryThreads(threads);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < TABLES; i++) {
+            SeqScan scan = new SeqScan(t.getId(), tables[i].getId(), "");
+            scan.open();
+            int[] seen = new int[rows];
+            while (scan.hasNext())
+                seen[((IntField) scan.next().getField(0)).getValue()]++;
+            scan.close();
+            for (int v = 0; v < rows; v++)
+                assertEquals("row " + v + " of table " + i, 1, seen[v]);
+        }
+        t.commit();
+    }
+
+    @Test public void testParallelRedo() throws Exception {
+        setup();
+        for (int v = 0; v < ROWS; v += 100)
+            insertRows(v, v + 100);
+        crashAndCheck(4, ROWS);
+    }
+
+    /** Recovering twice gives the same result: redo is idempotent. */
+    @Test public void testRedoTwice() throws Exception {
+        setup();
+        for (int v = 0; v < ROWS; v += 100)
+            insertRows(v, v + 100);
+        crashAndCheck(4, ROWS);
+        crashAndCheck(1, ROWS);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelRedoTest.class);
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Builds secondary indexes on heap files, and checks that lookups through
+ * them match the table as tuples are inserted and deleted.
+ */
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+    private static final int MAX_VALUE = 500;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile table;
+    private SecondaryIndex index;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+        File f = File.createTempFile("secondary", ".idx");
+        f.deleteOnExit();
+        index = SecondaryIndex.create(table.getId(), 1, f);
+        Database.getCatalog().addIndex(index);
+    }
+
+    private ArrayList<ArrayList<Integer>> matching(Op op, int value) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (new IntField(t.get(1)).compare(op, new IntField(value)))
+                result.add(t);
+        return result;
+    }
+
+    private void checkLookup(TransactionId tid, Op op, int value) throws Exception {
+        SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, "t",
+                new IndexPredicate(op, new IntField(value)));
+        SystemTestUtil.matchTuples(scan, matching(op, value));
+
+        // the tuples come back in the order of the indexed field
+        scan.open();
+        int prev = Integer.MIN_VALUE;
+        while (scan.hasNext()) {
+            int v = ((IntField) scan.next().getField(1)).getValue();
+            assertTrue(prev <= v);
+            prev = v;
+        }
+        scan.close();
+    }
+
+    private void insert(TransactionId tid, int v0, int v1) throws Exception {
+        ArrayList<Integer> row = new ArrayList<Integer>();
+        row.add(v0);
+        row.add(v1);
+        tuples.add(row);
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] { v0, v1 }));
+    }
+
+    /** The index is in the catalog but is not a table. */
+    @Test public void testCatalog() {
+        assertSame(index, Database.getCatalog().getIndex(table.getId(), 1));
+        assertNull(Database.getCatalog().getIndex(table.getId(), 0));
+        assertEquals(1, Database.getCatalog().getIndexes(table.getId()).size());
+        assertSame(index.getFile(), Database.getCatalog().getDatabaseFile(index.getId()));
+        Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        while (it.hasNext())
+            assertTrue(it.next() != index.getId());
+    }
+
+    /** Lookups match a scan of the table. */
+    @Test public void testLookup() throws Exception {
+        TransactionId tid = new TransactionId();
+        int value = tuples.get(0).get(1);
+        checkLookup(tid, Op.EQUALS, value);
+        checkLookup(tid, Op.GREATER_THAN, MAX_VALUE / 2);
+        checkLookup(tid, Op.LESS_THAN_OR_EQ, MAX_VALUE / 4);
+        SystemTestUtil.matchTuples(new SecondaryIndexScan(tid, index, null), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Inserts and deletes through the buffer pool maintain the index. */
+    @Test public void testMaintenance() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 50; i++)
+            insert(tid, i, MAX_VALUE + i % 5);
+        checkLookup(tid, Op.GREATER_THAN_OR_EQ, MAX_VALUE);
+
+        // delete the tuples with small values of the indexed field
+        SeqScan scan = new SeqScan(tid, table.getId(), "");
+        Delete delete = new Delete(tid, new Filter(new Predicate(1, Op.LESS_THAN, new IntField(MAX_VALUE / 10)), scan));
+        delete.open();
+        delete.next();
+        delete.close();
+        for (Iterator<ArrayList<Integer>> it = tuples.iterator(); it.hasNext();)
+            if (it.next().get(1) < MAX_VALUE / 10)
+                it.remove();
+        checkLookup(tid, Op.LESS_THAN, MAX_VALUE / 5);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        BTreeChecker.checkRep(index.getFile(), tid, new HashMap<PageId, Page>(), false);
+        checkLookup(tid, Op.GREATER_THAN, 0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** An aborted insert leaves no entry behind. */
+    @Test public void testAbort() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, 1, MAX_VALUE + 1);
+        Database.getBufferPool().transactionComplete(tid, false);
+        tuples.remove(tuples.size() - 1);
+
+        tid = new TransactionId();
+        checkLookup(tid, Op.EQUALS, MAX_VALUE + 1);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs a transaction that updates many more pages than fit in the buffer
+ * pool.  With STEAL the dirty pages are logged and evicted instead of the
+ * transaction running out of buffer pages, and an abort undoes the pages
+ * that were written to disk.
+ */
+public class StealTest extends SimpleDbTestBase {
+    private static final int ROWS = 512 * 10;
+
+    private HeapFile f;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    private void deleteAll(Transaction t) throws DbException, TransactionAbortedException {
+        Delete delete = new Delete(t.getId(), new SeqScan(t.getId(), f.getId(), ""));
+        delete.open();
+        Tuple result = delete.next();
+        assertEquals(ROWS, ((IntField) result.getField(0)).getValue());
+        delete.close();
+    }
+
+    private void setup() throws IOException, DbException, TransactionAbortedException {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+        BufferPool bp = Database.resetBufferPool(3);
+        bp.setStealing(true);
+    }
+
+    @Test public void testAbortLargeTransaction()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Transaction t = new Transaction();
+        t.start();
+        deleteAll(t);
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        SystemTestUtil.matchTuples(f, t.getId(), tuples);
+        t.commit();
+    }
+
+    @Test public void testCommitLargeTransaction()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Transaction t = new Transaction();
+        t.start();
+        deleteAll(t);
+        t.commit();
+
+        // the committed deletes survive a flush of the buffer pool
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(3);
+        t = new Transaction();
+        t.start();
+        SystemTestUtil.matchTuples(f, t.getId(), new ArrayList<ArrayList<Integer>>());
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(StealTest.class);
+    }
+}